@@ -28,6 +28,7 @@ import se.bes.mhfs.logger.CLILogger;
 import se.bes.mhfs.manager.HFSMonitor;
 import se.bes.mhfs.manager.SettingsManager;
 import se.bes.mhfs.network.Network;
+import se.bes.mhfs.network.TrafficClass;
 
 public class CLIRunner {
     private Network n;
@@ -38,7 +39,7 @@ public class CLIRunner {
         monitor = new HFSMonitor(logger);
         new SettingsManager(monitor).loadSettings();
 
-        n = new Network(logger, monitor);
+        n = Network.create(logger, monitor);
 
         n.start();
         
@@ -48,14 +49,21 @@ public class CLIRunner {
     }
     
     public CLIRunner(int port, int speed){
+        this(port, speed, null);
+    }
+
+    public CLIRunner(int port, int speed, Network.Engine engine){
         CLILogger logger = new CLILogger();
         monitor = new HFSMonitor(logger);
         new SettingsManager(monitor).loadSettings();
 
         monitor.setSpeed(speed);
         monitor.setPort(port);
+        if (engine != null) {
+            monitor.setEngine(engine);
+        }
 
-        n = new Network(logger, monitor);
+        n = Network.create(logger, monitor);
 
         n.start();
         
@@ -67,5 +75,10 @@ public class CLIRunner {
         System.out.println("Port: " + monitor.getInMemory().port);
         System.out.println("Max speed: " + monitor.getInMemory().speed + "kB/s (0 = unlimited)");
         System.out.println("Upload dir: " + monitor.getInMemory().uploadDir);
+        System.out.println("Engine: " + monitor.getInMemory().engine);
+        System.out.println("Workers: " + monitor.getInMemory().executor + " (" + monitor.getInMemory().workerThreads + " threads)");
+        for (TrafficClass trafficClass : monitor.getInMemory().trafficClasses) {
+            System.out.println("Traffic class: " + trafficClass);
+        }
     }
 }
\ No newline at end of file
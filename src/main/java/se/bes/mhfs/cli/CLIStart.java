@@ -24,11 +24,16 @@
 
 package se.bes.mhfs.cli;
 
+import se.bes.mhfs.network.Network;
 
 public class CLIStart {
 
     public static void main(String[] args) {
-        if(args.length == 2){
+        if(args.length == 3){
+            int port = Integer.parseInt(args[0]);
+            int speed = Integer.parseInt(args[1]);
+            new CLIRunner(port, speed, Network.Engine.valueOf(args[2].toUpperCase()));
+        }else if(args.length == 2){
             int port = Integer.parseInt(args[0]);
             int speed = Integer.parseInt(args[1]);
             new CLIRunner(port, speed);
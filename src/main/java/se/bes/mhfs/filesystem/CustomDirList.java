@@ -27,12 +27,20 @@ package se.bes.mhfs.filesystem;
 import se.bes.mhfs.manager.HFSMonitor;
 
 import java.io.File;
+import java.nio.file.Path;
 import java.util.*;
 
 public class CustomDirList extends Observable {
     private final static ArraysComp comparator = new ArraysComp();
     private final HFSMonitor monitor;
 
+    // The sorted names of the custom file map they were made from, while
+    // the directories of its files were at sortedGeneration
+    private Map<String, File> sortedFor;
+    private Set<Path> sortedDirs;
+    private long sortedGeneration = -1;
+    private final Map<SortOrder, String[]> sorted = new EnumMap<>(SortOrder.class);
+
     public CustomDirList(HFSMonitor monitor) {
         this.monitor = monitor;
     }
@@ -52,6 +60,56 @@ public class CustomDirList extends Observable {
         return strings;
     }
 
+    /**
+     * @param order null for the default order, by shared name. Sorted orders
+     *              are kept until the custom files, or anything in their
+     *              directories, change.
+     */
+    public synchronized String[] getDirStrings(SortOrder order) {
+        if (order == null || order == SortOrder.NAME) {
+            return getDirStrings();
+        }
+        Map<String, File> customFiles = monitor.getInMemory().customFiles;
+        if (sortedFor != customFiles) {
+            sortedFor = customFiles;
+            sortedDirs = directoriesOf(customFiles);
+            sortedGeneration = -1;
+        }
+        // A file that grows or is touched in place changes its directory's generation
+        long generation = monitor.getFSList().generation(sortedDirs);
+        if (generation < 0 || generation != sortedGeneration) {
+            sorted.clear();
+            sortedGeneration = generation;
+        }
+        String[] strings = sorted.get(order);
+        if (strings == null) {
+            strings = getDirStrings();
+            // One stat per file, not one per comparison
+            Map<String, DirEntry> entries = new HashMap<>();
+            for (Map.Entry<String, File> custom : customFiles.entrySet()) {
+                entries.put(custom.getKey(), DirEntry.of(custom.getValue()));
+            }
+            Comparator<DirEntry> byEntry = order.comparator;
+            Arrays.sort(strings, (a, b) -> {
+                int c = byEntry.compare(entries.get(a), entries.get(b));
+                return c != 0 ? c : comparator.compare(a, b);
+            });
+            sorted.put(order, strings);
+        }
+        return strings.clone();
+    }
+
+    private static Set<Path> directoriesOf(Map<String, File> customFiles) {
+        Set<Path> dirs = new HashSet<>();
+        for (File f : customFiles.values()) {
+            Path parent = f.toPath().toAbsolutePath().normalize().getParent();
+            if (parent != null) {
+                dirs.add(parent);
+            }
+        }
+        return dirs;
+    }
+
     public synchronized File lookup(String s) {
         Map<String, File> customFiles = monitor.getInMemory().customFiles;
         return customFiles.get(s);
@@ -0,0 +1,326 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Erik Zivkovic
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package se.bes.mhfs.filesystem;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Directory snapshots keyed by normalized absolute path. Every cached
+ * directory is watched with a WatchService and dropped as soon as anything
+ * in it changes, or a directory above it that is watched too is renamed or
+ * removed. The least recently used snapshots are evicted when the
+ * cached entries go over budget.
+ * <p>
+ * Paths that turned out not to exist are remembered for a short while as
+ * well, so broken links and crawlers do not cost a stat per request.
+ */
+class DirCache {
+    /**
+     * Total number of directory entries kept, roughly a hundred bytes each.
+     */
+    static final int MAX_ENTRIES = 200000;
+
+    /**
+     * How long a missing path is believed to stay missing. Misses in watched
+     * directories are dropped sooner, as soon as the directory changes.
+     */
+    static final long MISSING_TTL_NANOS = TimeUnit.SECONDS.toNanos(2);
+    static final int MAX_MISSING = 10000;
+
+    /**
+     * Directories watched only because something in them was missing. Past
+     * this the least recently missed one stops being watched, its misses
+     * just expire, so crawlers can not use up the system's watches.
+     */
+    static final int MAX_MISS_WATCHES = 256;
+
+    private final LinkedHashMap<Path, DirSnapshot> mSnapshots = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Path, WatchKey> mKeys = new HashMap<>();
+    private final LinkedHashMap<Path, Long> mMissing = new LinkedHashMap<Path, Long>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, Long> eldest) {
+            return size() > MAX_MISSING;
+        }
+    };
+    private final LinkedHashMap<Path, Boolean> mMissWatches = new LinkedHashMap<>(16, 0.75f, true);
+    private int mEntries;
+    private long mInvalidations;
+
+    private WatchService mWatcher;
+    private boolean mWatcherFailed;
+
+    /**
+     * @param path normalized absolute path of the directory
+     * @return the snapshot of path, or null if it can not be listed
+     */
+    DirSnapshot get(Path path) {
+        long invalidations;
+        synchronized (this) {
+            DirSnapshot snapshot = mSnapshots.get(path);
+            if (snapshot != null) {
+                return snapshot;
+            }
+            // Watch before listing, so a change during the listing is not missed
+            if (!watch(path)) {
+                return DirSnapshot.list(path);
+            }
+            invalidations = mInvalidations;
+        }
+
+        DirSnapshot snapshot = DirSnapshot.list(path);
+
+        synchronized (this) {
+            // Something changed while listing, the snapshot may already be stale
+            if (snapshot != null && invalidations == mInvalidations) {
+                DirSnapshot old = mSnapshots.put(path, snapshot);
+                if (old != null) {
+                    mEntries -= old.size();
+                }
+                mEntries += snapshot.size();
+                evict();
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * @param path normalized absolute path
+     * @return true if path was missing a moment ago
+     */
+    synchronized boolean isMissing(Path path) {
+        Long expires = mMissing.get(path);
+        if (expires == null) {
+            return false;
+        }
+        if (expires - System.nanoTime() > 0) {
+            return true;
+        }
+        mMissing.remove(path);
+        return false;
+    }
+
+    /**
+     * @param path normalized absolute path that was just found not to exist
+     */
+    void markMissing(Path path) {
+        Path parent = path.getParent();
+        boolean watchable = parent != null && Files.isDirectory(parent);
+        synchronized (this) {
+            // Creating the path shows up as a change of its parent. Deeper
+            // misses, under directories that are not there either, simply expire.
+            if (watchable) {
+                watchForMiss(parent);
+            }
+            mMissing.put(path, System.nanoTime() + MISSING_TTL_NANOS);
+        }
+    }
+
+    /**
+     * Watches dirs, for what is cached elsewhere but depends on their entries.
+     *
+     * @param dirs normalized absolute paths of directories
+     * @return the generation, which changes whenever anything in a watched
+     * directory does, or -1 if dirs can not be watched
+     */
+    synchronized long generation(Collection<Path> dirs) {
+        for (Path dir : dirs) {
+            if (!watch(dir)) {
+                return -1;
+            }
+        }
+        return mInvalidations;
+    }
+
+    synchronized void clear() {
+        mMissing.clear();
+        mMissWatches.clear();
+        mSnapshots.clear();
+        mEntries = 0;
+        mInvalidations++;
+        for (WatchKey key : mKeys.values()) {
+            key.cancel();
+        }
+        mKeys.clear();
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<Path, DirSnapshot>> it = mSnapshots.entrySet().iterator();
+        while (mEntries > MAX_ENTRIES && mSnapshots.size() > 1 && it.hasNext()) {
+            Map.Entry<Path, DirSnapshot> eldest = it.next();
+            mEntries -= eldest.getValue().size();
+            it.remove();
+            mMissWatches.remove(eldest.getKey());
+            unwatch(eldest.getKey());
+        }
+    }
+
+    private void watchForMiss(Path dir) {
+        if (mMissWatches.get(dir) != null || mKeys.containsKey(dir) || !watch(dir)) {
+            return;
+        }
+        mMissWatches.put(dir, Boolean.TRUE);
+        if (mMissWatches.size() > MAX_MISS_WATCHES) {
+            Iterator<Path> it = mMissWatches.keySet().iterator();
+            Path eldest = it.next();
+            it.remove();
+            if (!mSnapshots.containsKey(eldest)) {
+                unwatch(eldest);
+            }
+        }
+    }
+
+    private void unwatch(Path dir) {
+        WatchKey key = mKeys.remove(dir);
+        if (key != null) {
+            key.cancel();
+            // Changes there go unnoticed from now on, whatever was keyed on the generation is stale
+            mInvalidations++;
+        }
+    }
+
+    private void invalidate(Path path) {
+        synchronized (this) {
+            mInvalidations++;
+            DirSnapshot old = mSnapshots.remove(path);
+            if (old != null) {
+                mEntries -= old.size();
+            }
+            if (!mMissing.isEmpty()) {
+                mMissing.keySet().removeIf(missing -> path.equals(missing.getParent()));
+            }
+        }
+    }
+
+    /**
+     * Drops the snapshots, misses and watches of root and everything under it.
+     */
+    private synchronized void invalidateTree(Path root) {
+        mInvalidations++;
+        Iterator<Map.Entry<Path, DirSnapshot>> it = mSnapshots.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Path, DirSnapshot> entry = it.next();
+            if (entry.getKey().startsWith(root)) {
+                mEntries -= entry.getValue().size();
+                it.remove();
+            }
+        }
+        if (!mMissing.isEmpty()) {
+            mMissing.keySet().removeIf(missing -> missing.startsWith(root));
+        }
+        // Watches follow the directory, not its name, so ones under an old name are of no use
+        Iterator<Map.Entry<Path, WatchKey>> keys = mKeys.entrySet().iterator();
+        while (keys.hasNext()) {
+            Map.Entry<Path, WatchKey> entry = keys.next();
+            if (entry.getKey().startsWith(root)) {
+                entry.getValue().cancel();
+                mMissWatches.remove(entry.getKey());
+                keys.remove();
+            }
+        }
+    }
+
+    /**
+     * @return false if changes can not be watched and nothing should be cached
+     */
+    private boolean watch(Path path) {
+        if (mKeys.containsKey(path)) {
+            return true;
+        }
+        if (mWatcher == null) {
+            if (mWatcherFailed) {
+                return false;
+            }
+            try {
+                mWatcher = FileSystems.getDefault().newWatchService();
+            } catch (IOException | UnsupportedOperationException e) {
+                e.printStackTrace();
+                mWatcherFailed = true;
+                return false;
+            }
+            Thread t = new Thread(this::watchLoop, "MHFS-dir-watcher");
+            t.setDaemon(true);
+            t.start();
+        }
+        try {
+            mKeys.put(path, path.register(mWatcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY));
+            return true;
+        } catch (IOException e) {
+            // Out of watches or not a directory, path is simply not cached
+            return false;
+        }
+    }
+
+    private void watchLoop() {
+        try {
+            while (true) {
+                WatchKey key = mWatcher.take();
+                Path dir = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // Events were lost, nothing cached can be trusted
+                        clear();
+                        break;
+                    }
+                    if (event.kind() != StandardWatchEventKinds.ENTRY_MODIFY) {
+                        // A directory renamed, moved or removed takes everything cached under it along.
+                        // A deleted entry can no longer tell if it was a directory, so any will do.
+                        invalidateTree(dir.resolve((Path) event.context()));
+                    }
+                }
+                invalidate(dir);
+                if (!key.reset()) {
+                    // The directory itself is gone
+                    synchronized (this) {
+                        mKeys.remove(dir, key);
+                        mMissWatches.remove(dir);
+                    }
+                    invalidateTree(dir);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Changes are not noticed any more, so nothing may stay cached
+            synchronized (this) {
+                mWatcher = null;
+                mWatcherFailed = true;
+            }
+            clear();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Erik Zivkovic
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package se.bes.mhfs.filesystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * A listed file or directory with its type, size and modification time as
+ * they were when it was listed, so listing pages, sort orders and
+ * validators never ask the disk again.
+ */
+public final class DirEntry {
+    static final DirEntry[] EMPTY = new DirEntry[0];
+
+    private final File file;
+    private final long length;
+    private final long lastModified;
+    private final boolean directory;
+
+    private DirEntry(File file, long length, long lastModified, boolean directory) {
+        this.file = file;
+        this.length = length;
+        this.lastModified = lastModified;
+        this.directory = directory;
+    }
+
+    /**
+     * Reads type, size and modification time with one stat.
+     *
+     * @return the entry, or null if it is gone or neither a directory nor a regular file
+     */
+    static DirEntry read(Path path) {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException e) {
+            return null;
+        }
+        if (attributes.isDirectory()) {
+            return new DirEntry(path.toFile(), 0, attributes.lastModifiedTime().toMillis(), true);
+        } else if (attributes.isRegularFile()) {
+            return new DirEntry(path.toFile(), attributes.size(), attributes.lastModifiedTime().toMillis(), false);
+        }
+        return null;
+    }
+
+    /**
+     * @return an entry for f as it is now, also when it is not there any more
+     */
+    public static DirEntry of(File f) {
+        return new DirEntry(f, f.length(), f.lastModified(), f.isDirectory());
+    }
+
+    static File[] toFiles(DirEntry[] entries) {
+        if (entries == null) {
+            return null;
+        }
+        File[] files = new File[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            files[i] = entries[i].file;
+        }
+        return files;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public String getName() {
+        return file.getName();
+    }
+
+    /**
+     * @return the size in bytes, 0 for directories
+     */
+    public long length() {
+        return length;
+    }
+
+    public long lastModified() {
+        return lastModified;
+    }
+
+    public boolean isDirectory() {
+        return directory;
+    }
+}
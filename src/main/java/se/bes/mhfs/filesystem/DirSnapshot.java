@@ -0,0 +1,154 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Erik Zivkovic
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package se.bes.mhfs.filesystem;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The entries of one directory as they were when it was listed. The type,
+ * size and modification time of each entry are read with a single stat
+ * here, so listing pages and validators built from a snapshot do not
+ * touch the disk again.
+ */
+class DirSnapshot {
+    /**
+     * Stands in for directories with more than {@link #MAX_ENTRIES} entries,
+     * which are streamed instead of snapshotted.
+     */
+    static final DirSnapshot LARGE = new DirSnapshot(DirEntry.EMPTY, DirEntry.EMPTY);
+
+    static final int MAX_ENTRIES = 20000;
+
+    final DirEntry[] dirs;
+    final DirEntry[] files;
+
+    // Sorted once per order and kept until the snapshot is dropped
+    private final Map<SortOrder, DirEntry[]> mSortedDirs = new ConcurrentHashMap<>();
+    private final Map<SortOrder, DirEntry[]> mSortedFiles = new ConcurrentHashMap<>();
+
+    private DirSnapshot(DirEntry[] dirs, DirEntry[] files) {
+        this.dirs = dirs;
+        this.files = files;
+    }
+
+    /**
+     * @return the snapshot, LARGE if dir has too many entries to keep, or
+     * null if dir can not be listed
+     */
+    static DirSnapshot list(Path dir) {
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (Path path : entries) {
+                if (paths.size() == MAX_ENTRIES) {
+                    // Stop before any stat, the rest would only be thrown away
+                    return LARGE;
+                }
+                if (!FSList.isStaging(path)) {
+                    paths.add(path);
+                }
+            }
+        } catch (IOException | DirectoryIteratorException e) {
+            return null;
+        }
+
+        List<DirEntry> dirs = new ArrayList<>();
+        List<DirEntry> files = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        for (Path path : paths) {
+            DirEntry entry = DirEntry.read(path);
+            if (entry == null) {
+                continue;
+            }
+            if (entry.isDirectory()) {
+                dirs.add(entry);
+            } else {
+                files.add(entry);
+                names.add(entry.getName());
+            }
+        }
+        files.removeIf(f -> names.contains(FSList.sidecarBase(f.getName())));
+        return new DirSnapshot(dirs.toArray(DirEntry.EMPTY), files.toArray(DirEntry.EMPTY));
+    }
+
+    /**
+     * Lists the directories or the files of dir without keeping a snapshot,
+     * for directories too large to cache.
+     *
+     * @param filter applied to the paths before they are read
+     * @return the entries, or null if dir can not be listed
+     */
+    static DirEntry[] scan(Path dir, boolean directories, DirectoryStream.Filter<Path> filter) {
+        List<DirEntry> listed = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir, filter)) {
+            for (Path path : entries) {
+                DirEntry entry = DirEntry.read(path);
+                if (entry != null && entry.isDirectory() == directories) {
+                    listed.add(entry);
+                }
+            }
+        } catch (IOException | DirectoryIteratorException e) {
+            return null;
+        }
+        return listed.toArray(DirEntry.EMPTY);
+    }
+
+    /**
+     * @param order null for the order the directory was read in
+     */
+    DirEntry[] dirs(SortOrder order) {
+        return order == null ? dirs : mSortedDirs.computeIfAbsent(order, o -> sorted(dirs, o));
+    }
+
+    /**
+     * @param order null for the order the directory was read in
+     */
+    DirEntry[] files(SortOrder order) {
+        return order == null ? files : mSortedFiles.computeIfAbsent(order, o -> sorted(files, o));
+    }
+
+    static DirEntry[] sorted(DirEntry[] entries, SortOrder order) {
+        DirEntry[] sorted = entries.clone();
+        Arrays.sort(sorted, order.comparator);
+        return sorted;
+    }
+
+    /**
+     * Number of entries, what the cache budget is counted in.
+     */
+    int size() {
+        return dirs.length + files.length;
+    }
+}
@@ -27,82 +27,215 @@ package se.bes.mhfs.filesystem;
 import se.bes.mhfs.manager.HFSMonitor;
 
 import java.io.File;
-import java.io.FileFilter;
-import java.io.UnsupportedEncodingException;
-import java.net.URLDecoder;
-import java.nio.charset.Charset;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
 import java.util.Observable;
 
 public class FSList extends Observable {
+    /**
+     * Precompressed copies, served instead of the file they sit next to
+     * to clients that accept their encoding.
+     */
+    public static final String[] SIDECAR_SUFFIXES = {".br", ".gz"};
+
+    /**
+     * Where unfinished uploads are kept. It is never listed or served, even
+     * when the upload directory is inside the base directory.
+     */
+    public static final String STAGING_DIRECTORY = ".mhfs-partial";
+
     private HFSMonitor monitor;
+    private final DirCache cache = new DirCache();
+    private final PathResolver resolver = new PathResolver();
 
     public FSList(HFSMonitor monitor) {
         this.monitor = monitor;
     }
 
+    /**
+     * @param place the request path, still percent-encoded
+     * @return the normalized absolute path of place, or null if it is outside the base directory
+     * or in the staging directory
+     */
+    public Path resolve(String place) {
+        return resolver.resolve(monitor.getInMemory().baseDir, place);
+    }
+
+    /**
+     * @param place the request path, still percent-encoded
+     * @return the decoded last segment of place
+     */
+    public String fileName(String place) {
+        return resolver.fileName(place);
+    }
+
+    /**
+     * @return path as it is seen from the base directory, like /iso/disk.iso,
+     * or just its name if it is somewhere else, like files of the custom list
+     */
+    public String sharedPath(Path path) {
+        Path base = resolver.base(monitor.getInMemory().baseDir);
+        Path absolute = path.toAbsolutePath().normalize();
+        if (!absolute.startsWith(base)) {
+            Path name = absolute.getFileName();
+            return name != null ? "/" + name : "/";
+        }
+
+        StringBuilder shared = new StringBuilder();
+        for (Path segment : base.relativize(absolute)) {
+            if (segment.toString().length() > 0) {
+                shared.append('/').append(segment);
+            }
+        }
+        return shared.length() > 0 ? shared.toString() : "/";
+    }
+
+    /**
+     * @param dirs normalized absolute paths of directories, watched from now on
+     * @return a number that changes whenever anything in dirs does, or -1 if they can not be watched
+     */
+    long generation(Collection<Path> dirs) {
+        return cache.generation(dirs);
+    }
+
     public boolean isDir(String place){
+        Path path = resolve(place);
+        return path != null && !cache.isMissing(path) && Files.isDirectory(path);
+    }
+
+    /**
+     * @return the regular file at place, or null if place is a directory or is not there
+     */
+    public File getFile(String place) {
+        Path path = resolve(place);
+        if (path == null || cache.isMissing(path))
+            return null;
+
+        BasicFileAttributes attributes;
         try {
-            place = URLDecoder.decode(place, Charset.defaultCharset().toString());
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException e) {
+            cache.markMissing(path);
+            return null;
         }
-        File f = new File(monitor.getInMemory().baseDir + "/" + place);
-        return f.isDirectory();
+        return attributes.isRegularFile() ? path.toFile() : null;
     }
 
     public File[] getFiles(String dirString) {
-        try {
-            dirString = URLDecoder.decode(dirString, Charset.defaultCharset().toString());
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
+        return DirEntry.toFiles(getFiles(dirString, null));
+    }
+
+    /**
+     * @param order null for the order the directory was read in. Sorted
+     *              orders are kept with the cached listing.
+     */
+    public DirEntry[] getFiles(String dirString, SortOrder order) {
+        Path dir = resolve(dirString);
+        if (dir == null || cache.isMissing(dir))
+            return null;
+
+        if (Files.isRegularFile(dir)) {
+            DirEntry entry = DirEntry.read(dir);
+            return entry != null ? new DirEntry[] { entry } : null;
         }
-        final String baseDir = monitor.getInMemory().baseDir;
-        File dir = new File(baseDir + "/" + dirString);
-        if (!dir.getAbsolutePath().contains(baseDir))
-            return (new File[] { new File(baseDir) });
-        
-        if(dir.isFile())
-            return (new File[] { dir });
-
-        File[] ff = dir.listFiles(new FileFilter() {
-            public boolean accept(File pathname) {
-                if (pathname.isFile())
-                    return true;
-                return false;
-            }
-        });
 
-        return ff;
+        DirSnapshot snapshot = cache.get(dir);
+        if (snapshot == DirSnapshot.LARGE) {
+            DirEntry[] files = DirSnapshot.scan(dir, false, path -> !isSidecar(path));
+            return files != null && order != null ? DirSnapshot.sorted(files, order) : files;
+        }
+        return snapshot != null ? snapshot.files(order).clone() : missing(dir);
     }
 
     public File[] getDirs(String dirString) {
-        try {
-            dirString = URLDecoder.decode(dirString, Charset.defaultCharset().toString());
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
+        return DirEntry.toFiles(getDirs(dirString, null));
+    }
+
+    /**
+     * @param order null for the order the directory was read in. Sorted
+     *              orders are kept with the cached listing.
+     */
+    public DirEntry[] getDirs(String dirString, SortOrder order) {
+        Path dir = resolve(dirString);
+        if (dir == null || cache.isMissing(dir))
+            return null;
+
+        DirSnapshot snapshot = cache.get(dir);
+        if (snapshot == DirSnapshot.LARGE) {
+            DirEntry[] dirs = DirSnapshot.scan(dir, true, path -> !isStaging(path));
+            return dirs != null && order != null ? DirSnapshot.sorted(dirs, order) : dirs;
         }
-        final String baseDir = monitor.getInMemory().baseDir;
-        File dir = new File(baseDir + "/" + dirString);
-        if (!dir.getAbsolutePath().contains(baseDir))
-            return (new File[] { new File(baseDir) });
+        return snapshot != null ? snapshot.dirs(order).clone() : missing(dir);
+    }
 
-        return dir.listFiles(new FileFilter() {
-            public boolean accept(File pathname) {
-                return pathname.isDirectory();
-            }
-        });
+    /**
+     * Called when dir could not be listed, remembers it if it is not there at all.
+     *
+     * @return null
+     */
+    private DirEntry[] missing(Path dir) {
+        if (!Files.exists(dir))
+            cache.markMissing(dir);
+        return null;
+    }
+
+    /**
+     * @return true if place has too many entries for getDirs and getFiles,
+     * and its listing should be streamed with openDirStream instead
+     */
+    public boolean isLargeDir(String place) {
+        Path dir = resolve(place);
+        if (dir == null || cache.isMissing(dir) || !Files.isDirectory(dir))
+            return false;
+
+        return cache.get(dir) == DirSnapshot.LARGE;
+    }
+
+    /**
+     * Iterates the entries of place without holding them all in memory.
+     * Sidecars and the staging directory are left out, like in getFiles and getDirs.
+     */
+    public DirectoryStream<Path> openDirStream(String place) throws IOException {
+        Path dir = resolve(place);
+        if (dir == null)
+            throw new IOException("Outside of the base directory: " + place);
+
+        return Files.newDirectoryStream(dir, path -> !isSidecar(path) && !isStaging(path));
+    }
+
+    static boolean isStaging(Path path) {
+        Path name = path.getFileName();
+        return name != null && name.toString().equals(STAGING_DIRECTORY);
     }
     
-    public boolean isBaseDirectory(String isBase){
-        try {
-            isBase = URLDecoder.decode(isBase, Charset.defaultCharset().toString());
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
+    /**
+     * A sidecar is only hidden from listings when the file it is a copy of
+     * is there, a lone foo.gz is an ordinary file.
+     */
+    private static boolean isSidecar(Path path) {
+        String base = sidecarBase(path.getFileName().toString());
+        return base != null && Files.isRegularFile(path.resolveSibling(base));
+    }
+
+    /**
+     * @return the name of the file a sidecar is a precompressed copy of, like
+     * foo.txt for foo.txt.gz, or null
+     */
+    static String sidecarBase(String name) {
+        for (String suffix : SIDECAR_SUFFIXES) {
+            if (name.length() > suffix.length() && name.endsWith(suffix)) {
+                return name.substring(0, name.length() - suffix.length());
+            }
         }
+        return null;
+    }
+
+    public boolean isBaseDirectory(String isBase){
         final String baseDir = monitor.getInMemory().baseDir;
-        File isBaseF = new File(baseDir + "/" + isBase);
-        File baseDirF = new File(baseDir);
-        
-        return isBaseF.getAbsolutePath().equals(baseDirF.getAbsolutePath());
+        return resolver.base(baseDir).equals(resolve(isBase));
     }
 }
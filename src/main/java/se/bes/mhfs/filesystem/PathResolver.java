@@ -0,0 +1,168 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Erik Zivkovic
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package se.bes.mhfs.filesystem;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Turns request paths into paths under the base directory. Paths are
+ * percent-decoded and normalized, and a path that normalizes to somewhere
+ * outside the base directory does not resolve at all, and neither does
+ * anything in the upload staging directory. Recent resolutions
+ * are kept so the same request path is only decoded once.
+ */
+class PathResolver {
+    static final int MAX_ENTRIES = 4096;
+
+    private final Map<String, Resolved> mResolved = new ConcurrentHashMap<>();
+    private volatile Base mBase;
+
+    /**
+     * @param place the request path, still percent-encoded
+     * @return the normalized absolute path, or null if place is outside baseDir or staged
+     */
+    Path resolve(String baseDir, String place) {
+        Path base = base(baseDir);
+        Resolved resolved = mResolved.get(place);
+        if (resolved == null || resolved.base != base) {
+            resolved = new Resolved(base, place);
+            if (mResolved.size() >= MAX_ENTRIES) {
+                // Cheaper than tracking use, the hot paths come straight back
+                mResolved.clear();
+            }
+            mResolved.put(place, resolved);
+        }
+        return resolved.path;
+    }
+
+    /**
+     * @return the normalized absolute base directory
+     */
+    Path base(String baseDir) {
+        Base base = mBase;
+        if (base == null || !base.dir.equals(baseDir)) {
+            base = new Base(baseDir);
+            mBase = base;
+            mResolved.clear();
+        }
+        return base.path;
+    }
+
+    /**
+     * @param place the request path, still percent-encoded
+     * @return the decoded last segment of place, what plugins and the custom list are looked up by
+     */
+    String fileName(String place) {
+        Resolved resolved = mResolved.get(place);
+        return resolved != null ? resolved.name : lastSegment(decode(place));
+    }
+
+    /**
+     * Decodes %XX escapes as UTF-8 bytes, which is what browsers send. Unlike
+     * URLDecoder a '+' is left alone, it only means space in query strings,
+     * and a malformed escape is kept as it is instead of failing the request.
+     */
+    static String decode(String encoded) {
+        int percent = encoded.indexOf('%');
+        if (percent < 0) {
+            return encoded;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(encoded.length());
+        byte[] raw = encoded.getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < raw.length; i++) {
+            int high;
+            int low;
+            if (raw[i] == '%' && i + 2 < raw.length
+                    && (high = Character.digit(raw[i + 1], 16)) >= 0
+                    && (low = Character.digit(raw[i + 2], 16)) >= 0) {
+                bytes.write(high << 4 | low);
+                i += 2;
+            } else {
+                bytes.write(raw[i]);
+            }
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static String lastSegment(String path) {
+        int end = path.length();
+        while (end > 0 && path.charAt(end - 1) == '/') {
+            end--;
+        }
+        return path.substring(path.lastIndexOf('/', end - 1) + 1, end);
+    }
+
+    /**
+     * @return true if relative is the staging directory or anything in it
+     */
+    private static boolean isStaged(Path relative) {
+        for (Path segment : relative) {
+            if (segment.toString().equals(FSList.STAGING_DIRECTORY)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final class Base {
+        final String dir;
+        final Path path;
+
+        Base(String dir) {
+            this.dir = dir;
+            this.path = Paths.get(dir).toAbsolutePath().normalize();
+        }
+    }
+
+    private static final class Resolved {
+        final Path base;
+        final Path path;
+        final String name;
+
+        Resolved(Path base, String place) {
+            String decoded = decode(place);
+            this.base = base;
+            this.name = lastSegment(decoded);
+            Path path;
+            try {
+                int start = 0;
+                while (start < decoded.length() && decoded.charAt(start) == '/') {
+                    start++;
+                }
+                path = base.resolve(decoded.substring(start)).normalize();
+            } catch (InvalidPathException e) {
+                path = null;
+            }
+            // Normalizing has removed any .., what is left must still be under base
+            this.path = path != null && path.startsWith(base) && !isStaged(base.relativize(path)) ? path : null;
+        }
+    }
+}
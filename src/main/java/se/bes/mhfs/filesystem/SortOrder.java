@@ -0,0 +1,57 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Erik Zivkovic
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package se.bes.mhfs.filesystem;
+
+import java.util.Comparator;
+
+/**
+ * Orders a listing can be sorted in. Ties are broken by name, so every
+ * order is stable across requests.
+ */
+public enum SortOrder {
+    NAME(Comparator.comparing((DirEntry e) -> e.getName().toLowerCase())),
+    SIZE(Comparator.comparingLong(DirEntry::length).thenComparing(e -> e.getName().toLowerCase())),
+    MTIME(Comparator.comparingLong(DirEntry::lastModified).thenComparing(e -> e.getName().toLowerCase()));
+
+    final Comparator<DirEntry> comparator;
+
+    SortOrder(Comparator<DirEntry> comparator) {
+        this.comparator = comparator;
+    }
+
+    /**
+     * @return the order named by a sort= query value, or null for unknown ones
+     */
+    public static SortOrder parse(String name) {
+        if (name != null) {
+            for (SortOrder order : values()) {
+                if (order.name().equalsIgnoreCase(name)) {
+                    return order;
+                }
+            }
+        }
+        return null;
+    }
+}
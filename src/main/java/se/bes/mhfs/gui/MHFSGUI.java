@@ -32,6 +32,11 @@ import se.bes.mhfs.logger.GUILogger;
 import se.bes.mhfs.logger.MHFSLogger;
 import se.bes.mhfs.manager.HFSMonitor;
 import se.bes.mhfs.manager.SettingsManager;
+import se.bes.mhfs.network.ConnectionExecutor;
+import se.bes.mhfs.network.FairShaper;
+import se.bes.mhfs.network.FileUpload;
+import se.bes.mhfs.network.TrafficClass;
+import se.bes.mhfs.network.TrafficShaper;
 import se.bes.mhfs.network.Network;
 import se.bes.mhfs.network.NetworkInstance;
 import se.bes.mhfs.plugin.Plugin;
@@ -84,6 +89,7 @@ public class MHFSGUI extends JFrame implements WindowListener {
         tabbed.addTab("Progress", new JScrollPane(new NetworkProgressPane()));
 //        tabbed.addTab("Shared Files", new JScrollPane(new SharedFilesPane()));
         tabbed.addTab("Custom Files", new JScrollPane(new CustomFilePane()));
+        tabbed.addTab("Traffic", new JScrollPane(new TrafficPane()));
         tabbed.addTab("IP Address", new JScrollPane(new IPAddressPane()));
         tabbed.addTab("UPnP", new JScrollPane(new UPnPPane()));
         tabbed.addTab("Log", new JScrollPane(log));
@@ -128,12 +134,18 @@ public class MHFSGUI extends JFrame implements WindowListener {
         private final JButton saveButton = new JButton("Save settings");
         private JTextField portField;
         private JTextField speedField;
+        private JTextField uploadSpeedField;
+        private JTextField burstField;
+        private JTextField workersField;
+        private JTextField compressionField;
         private JTextField baseDirectory;
         private JTextField uploadDirectory;
         private final JButton chooseBaseDirButton = new JButton("...");
         private final JButton chooseUploadDirButton = new JButton("...");
         private JComboBox<String> upnpIpSelect;
         private JComboBox<UPnPDeviceLabel> upnpDeviceSelect;
+        private JComboBox<ConnectionExecutor.Type> executorSelect;
+        private JComboBox<Network.Engine> engineSelect;
 
         SettingsPane() {
             monitor.addObserver(this);
@@ -150,7 +162,7 @@ public class MHFSGUI extends JFrame implements WindowListener {
                         upnpProxy.removePortMapping(monitor.getInMemory().port, monitor.getUpnpHost());
                     }
                 } else {
-                    network = new Network(logger, monitor);
+                    network = Network.create(logger, monitor);
                     network.start();
                     monitor.setNetwork(true);
 
@@ -211,6 +223,68 @@ public class MHFSGUI extends JFrame implements WindowListener {
                 }
             });
 
+            uploadSpeedField = new JTextField(Integer.toString(monitor.getInMemory().uploadSpeed), 10);
+            uploadSpeedField.getDocument().addDocumentListener(new SimpleDocumentListener() {
+                @Override
+                public void onEvent(DocumentEvent e) {
+                    try {
+                        monitor.setUploadSpeed(Integer.parseInt(uploadSpeedField.getText()));
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+            });
+
+            burstField = new JTextField(Integer.toString(monitor.getInMemory().burst), 6);
+            burstField.getDocument().addDocumentListener(new SimpleDocumentListener() {
+                @Override
+                public void onEvent(DocumentEvent e) {
+                    try {
+                        monitor.setBurst(Integer.parseInt(burstField.getText()));
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+            });
+
+            executorSelect = new JComboBox<>(ConnectionExecutor.Type.values());
+            executorSelect.setSelectedItem(monitor.getInMemory().executor);
+            executorSelect.addActionListener(e -> {
+                ConnectionExecutor.Type selectedItem = (ConnectionExecutor.Type) executorSelect.getSelectedItem();
+                if (selectedItem != null && selectedItem != monitor.getInMemory().executor) {
+                    monitor.setExecutor(selectedItem);
+                }
+            });
+
+            engineSelect = new JComboBox<>(Network.Engine.values());
+            engineSelect.setSelectedItem(monitor.getInMemory().engine);
+            engineSelect.addActionListener(e -> {
+                Network.Engine selectedItem = (Network.Engine) engineSelect.getSelectedItem();
+                if (selectedItem != null && selectedItem != monitor.getInMemory().engine) {
+                    monitor.setEngine(selectedItem);
+                }
+            });
+
+            workersField = new JTextField(Integer.toString(monitor.getInMemory().workerThreads), 4);
+            workersField.getDocument().addDocumentListener(new SimpleDocumentListener() {
+                @Override
+                public void onEvent(DocumentEvent e) {
+                    try {
+                        monitor.setWorkerThreads(Integer.parseInt(workersField.getText()));
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+            });
+
+            compressionField = new JTextField(Integer.toString(monitor.getInMemory().compressionLevel), 2);
+            compressionField.getDocument().addDocumentListener(new SimpleDocumentListener() {
+                @Override
+                public void onEvent(DocumentEvent e) {
+                    try {
+                        monitor.setCompressionLevel(Integer.parseInt(compressionField.getText()));
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+            });
+
             baseDirectory = new JTextField(monitor.getInMemory().baseDir);
             uploadDirectory = new JTextField(monitor.getInMemory().uploadDir);
             baseDirectory.setEnabled(false);
@@ -242,9 +316,24 @@ public class MHFSGUI extends JFrame implements WindowListener {
 
             content.add("p", new JLabel("Port: "));
             content.add("", portField);
-            content.add("", new JLabel("Speed (\u00B110%): ")); // +/- character is u00B1
+            content.add("", new JLabel("Download: "));
             content.add("", speedField);
             content.add("", new JLabel("kB/s (0 = unlimited) "));
+            content.add("p", new JLabel("Upload: "));
+            content.add("", uploadSpeedField);
+            content.add("", new JLabel("kB/s "));
+            content.add("", new JLabel("Burst: "));
+            content.add("", burstField);
+            content.add("", new JLabel("kB"));
+            content.add("p", new JLabel("Compression level: "));
+            content.add("", compressionField);
+            content.add("", new JLabel("(0 = off, 1-9)"));
+            content.add("p", new JLabel("Engine: "));
+            content.add("", engineSelect);
+            content.add("", new JLabel("Workers: "));
+            content.add("", executorSelect);
+            content.add("", workersField);
+            content.add("", new JLabel("threads (pool only)"));
             content.add("p", new JLabel("Base directory: "));
             content.add("hfill", baseDirectory);
             content.add("right", chooseBaseDirButton);
@@ -265,11 +354,17 @@ public class MHFSGUI extends JFrame implements WindowListener {
         private void evaluateStartStopButton() {
             if (!monitor.getNetwork()) {
                 portField.setEnabled(true);
+                executorSelect.setEnabled(true);
+                engineSelect.setEnabled(true);
+                workersField.setEnabled(true);
                 upnpIpSelect.setEnabled(true);
                 upnpDeviceSelect.setEnabled(true);
                 startStopButton.setText("START");
             } else {
                 portField.setEnabled(false);
+                executorSelect.setEnabled(false);
+                engineSelect.setEnabled(false);
+                workersField.setEnabled(false);
                 upnpIpSelect.setEnabled(false);
                 upnpDeviceSelect.setEnabled(false);
                 startStopButton.setText("STOP");
@@ -371,10 +466,32 @@ public class MHFSGUI extends JFrame implements WindowListener {
                     if (!speedField.getText().equals(monitorSpeed)) {
                         speedField.setText(monitorSpeed);
                     }
+                    String monitorUploadSpeed = Integer.toString(monitor.getInMemory().uploadSpeed);
+                    if (!uploadSpeedField.getText().equals(monitorUploadSpeed)) {
+                        uploadSpeedField.setText(monitorUploadSpeed);
+                    }
+                    String monitorBurst = Integer.toString(monitor.getInMemory().burst);
+                    if (!burstField.getText().equals(monitorBurst)) {
+                        burstField.setText(monitorBurst);
+                    }
                     String monitorPort = Integer.toString(monitor.getInMemory().port);
                     if (!portField.getText().equals(monitorPort)) {
                         portField.setText(monitorPort);
                     }
+                    String monitorWorkers = Integer.toString(monitor.getInMemory().workerThreads);
+                    if (!workersField.getText().equals(monitorWorkers)) {
+                        workersField.setText(monitorWorkers);
+                    }
+                    String monitorCompression = Integer.toString(monitor.getInMemory().compressionLevel);
+                    if (!compressionField.getText().equals(monitorCompression)) {
+                        compressionField.setText(monitorCompression);
+                    }
+                    if (executorSelect.getSelectedItem() != monitor.getInMemory().executor) {
+                        executorSelect.setSelectedItem(monitor.getInMemory().executor);
+                    }
+                    if (engineSelect.getSelectedItem() != monitor.getInMemory().engine) {
+                        engineSelect.setSelectedItem(monitor.getInMemory().engine);
+                    }
                     String monitorUploadDir = monitor.getInMemory().uploadDir;
                     if (!uploadDirectory.getText().equals(monitorUploadDir)) {
                         uploadDirectory.setText(monitorUploadDir);
@@ -445,6 +562,7 @@ public class MHFSGUI extends JFrame implements WindowListener {
     private class NetworkProgressPane extends Container implements Observer {
         private static final long serialVersionUID = 1L;
         private Container c;
+        private final JLabel clients = new JLabel();
 
         NetworkProgressPane() {
             c = this;
@@ -453,11 +571,46 @@ public class MHFSGUI extends JFrame implements WindowListener {
 
             c.setLayout(new RiverLayout());
             updateGfx();
+
+            // Rates are sampled, not pushed, so they are polled once a second
+            new javax.swing.Timer(1000, e -> updateClients()).start();
+        }
+
+        private void updateClients() {
+            StringBuilder text = new StringBuilder("<html>");
+            appendClients(text, "Down", monitor.getDownloadShaper());
+            appendClients(text, "Up", monitor.getUploadShaper());
+            for (FileUpload upload : monitor.getUploads()) {
+                text.append(String.format("[R] %s: %.1f kB written ( %s )<br>",
+                        upload.getName(), upload.getWritten() / 1024d, upload.getHost()));
+            }
+            clients.setText(text.append("</html>").toString());
+        }
+
+        private void appendClients(StringBuilder text, String direction, TrafficShaper shaper) {
+            for (TrafficShaper.Lane lane : shaper.getLanes()) {
+                FairShaper classShaper = lane.getShaper();
+                if (classShaper.getTransfers() == 0 && classShaper.getBytes() == 0) {
+                    continue;
+                }
+                text.append(String.format("%s [%s]: %.1f kB/s (%d), %.1f MB in total<br>", direction,
+                        lane.getTrafficClass().name, classShaper.getRate(), classShaper.getTransfers(),
+                        classShaper.getBytes() / (1024d * 1024d)));
+                for (FairShaper.Client client : classShaper.getClients()) {
+                    text.append(String.format("&nbsp;&nbsp;%s: %.1f kB/s (%d)<br>",
+                            client.getHost(), client.getRate(), client.getTransfers()));
+                }
+            }
         }
 
         private void updateGfx() {
             c.removeAll();
 
+            c.add("p left", new JLabel(String.format("Workers: %d active, %d queued",
+                    monitor.getActiveWorkers(), monitor.getQueueDepth())));
+            c.add("br left", clients);
+            c.add("br hfill", new JLabel(""));
+
             LinkedList<NetworkInstance> lni = monitor.getNetworkInstances();
             for (NetworkInstance ni : lni) {
                 c.add("tab left", ni.getNameLabel());
@@ -552,6 +705,77 @@ public class MHFSGUI extends JFrame implements WindowListener {
         }
     }
 
+    private class TrafficPane extends Container implements Observer {
+        private static final long serialVersionUID = 1L;
+        private final JTextArea classes = new JTextArea(8, 40);
+        private final JLabel status = new JLabel(" ");
+        private final JButton applyButton = new JButton("Apply");
+        private final JButton saveButton = new JButton("Save settings");
+
+        TrafficPane() {
+            Container content = this;
+            content.setLayout(new RiverLayout());
+
+            monitor.addObserver(this);
+
+            JTextPane info = new JTextPane();
+            info.setText("One traffic class per line: name::direction::path::max size::weight::cap\n"
+                    + "direction is DOWNLOAD, UPLOAD or BOTH. path is under the base directory, like /iso, "
+                    + "and empty for any. max size is in kB, cap in kB/s, 0 for no limit.\n"
+                    + "Busy classes share the bandwidth by weight, weight 0 is never held back. "
+                    + "Transfers go in the first class they match, or the default class.\n"
+                    + "Example: small::DOWNLOAD::::1024::10::0");
+            info.setEditable(false);
+
+            classes.setText(classesText());
+
+            applyButton.addActionListener(e -> {
+                ArrayList<TrafficClass> parsed = new ArrayList<>();
+                for (String line : classes.getText().split("\n")) {
+                    if (line.trim().isEmpty()) {
+                        continue;
+                    }
+                    try {
+                        parsed.add(TrafficClass.parse(line.trim()));
+                    } catch (IllegalArgumentException ex) {
+                        status.setText("Not applied, " + ex.getMessage());
+                        return;
+                    }
+                }
+                status.setText(" ");
+                monitor.setTrafficClasses(parsed);
+            });
+
+            saveButton.addActionListener(e -> {
+                new SettingsManager(monitor).saveSettings();
+            });
+            saveButton.setEnabled(monitor.needsSave());
+
+            content.add("p hfill", info);
+            content.add("p hfill vfill", new JScrollPane(classes));
+            content.add("p left", applyButton);
+            content.add("", saveButton);
+            content.add("", status);
+        }
+
+        private String classesText() {
+            StringBuilder text = new StringBuilder();
+            for (TrafficClass trafficClass : monitor.getInMemory().trafficClasses) {
+                text.append(trafficClass).append('\n');
+            }
+            return text.toString();
+        }
+
+        @Override
+        public void update(Observable o, Object arg) {
+            SwingUtilities.invokeLater(() -> {
+                if (((UpdateEvent) arg).contains(UpdateEvent.Type.SETTINGS)) {
+                    saveButton.setEnabled(monitor.needsSave());
+                }
+            });
+        }
+    }
+
     private class IPAddressPane extends Container implements Observer {
         private Container ipAddressContainer;
         private static final long serialVersionUID = 1L;
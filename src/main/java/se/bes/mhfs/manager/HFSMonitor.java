@@ -28,29 +28,45 @@ import se.bes.mhfs.events.UpdateEvent;
 import se.bes.mhfs.filesystem.CustomDirList;
 import se.bes.mhfs.filesystem.FSList;
 import se.bes.mhfs.logger.MHFSLogger;
+import se.bes.mhfs.network.ConnectionExecutor;
+import se.bes.mhfs.network.FileUpload;
+import se.bes.mhfs.network.Network;
 import se.bes.mhfs.network.NetworkInstance;
+import se.bes.mhfs.network.TrafficClass;
+import se.bes.mhfs.network.TrafficShaper;
 import se.bes.mhfs.plugin.PluginManager;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Observable;
 import java.util.Observer;
+import java.util.concurrent.RejectedExecutionException;
 
 public class HFSMonitor extends Observable implements Observer {
 
     public static final String NO_UPNP_IP = "UPnP IP: None";
     public static final String NO_UPNP_DEVICE = "UPnP Device: None";
+    public static final int DEFAULT_WORKER_THREADS = 32;
+    public static final int DEFAULT_WORKER_QUEUE = 128;
+    public static final int DEFAULT_COMPRESSION_LEVEL = 6;
+    public static final int DEFAULT_BURST = 64; // kB
 
     private final LinkedList<NetworkInstance> instanceList;
+    private final LinkedList<FileUpload> uploadList = new LinkedList<>();
     private final CustomDirList customDirList;
     private final FSList fsList;
     private final PluginManager plugins;
     private final MHFSLogger logger;
+    private final TrafficShaper downloadShaper = new TrafficShaper(TrafficClass.Direction.DOWNLOAD);
+    private final TrafficShaper uploadShaper = new TrafficShaper(TrafficClass.Direction.UPLOAD);
 
     // Don't save these to file
     private String upnpHostNoSave;
     private boolean gotNetwork = false;
+    private volatile ConnectionExecutor connectionExecutor;
 
     // Defaults
     private volatile ImmutableSettings inMemory = new ImmutableSettings.Builder()
@@ -60,6 +76,12 @@ public class HFSMonitor extends Observable implements Observer {
             .setUpnpIp(NO_UPNP_IP)
             .setUpnpDevice(NO_UPNP_DEVICE)
             .setCustomFiles(new HashMap<>())
+            .setExecutor(ConnectionExecutor.Type.POOL)
+            .setWorkerThreads(DEFAULT_WORKER_THREADS)
+            .setWorkerQueue(DEFAULT_WORKER_QUEUE)
+            .setEngine(Network.Engine.BLOCKING)
+            .setCompressionLevel(DEFAULT_COMPRESSION_LEVEL)
+            .setBurst(DEFAULT_BURST)
             .build();
 
     private volatile ImmutableSettings inSettings = inMemory;
@@ -119,8 +141,81 @@ public class HFSMonitor extends Observable implements Observer {
         sendNotification(UpdateEvent.Type.SETTINGS, UpdateEvent.Type.SHARED_FILES);
     }
 
+    /**
+     * @param speed download limit for all connections together in kB/s, 0 for unlimited
+     */
     public void setSpeed(int speed) {
         inMemory = inMemory.buildUpon().setSpeed(speed).build();
+        updateShapers();
+        sendNotification(UpdateEvent.Type.SETTINGS);
+    }
+
+    /**
+     * @param uploadSpeed upload limit for all connections together in kB/s, 0 for unlimited
+     */
+    public void setUploadSpeed(int uploadSpeed) {
+        inMemory = inMemory.buildUpon().setUploadSpeed(uploadSpeed).build();
+        updateShapers();
+        sendNotification(UpdateEvent.Type.SETTINGS);
+    }
+
+    /**
+     * @param burst kB that may go out at full speed after being idle
+     */
+    public void setBurst(int burst) {
+        inMemory = inMemory.buildUpon().setBurst(Math.max(0, burst)).build();
+        updateShapers();
+        sendNotification(UpdateEvent.Type.SETTINGS);
+    }
+
+    /**
+     * @param trafficClasses matched in order, transfers that match none go in the default class
+     */
+    public void setTrafficClasses(List<TrafficClass> trafficClasses) {
+        inMemory = inMemory.buildUpon().setTrafficClasses(new ArrayList<>(trafficClasses)).build();
+        updateShapers();
+        sendNotification(UpdateEvent.Type.SETTINGS);
+    }
+
+    public synchronized void addTrafficClass(TrafficClass trafficClass) {
+        ArrayList<TrafficClass> trafficClasses = new ArrayList<>(inMemory.trafficClasses);
+        trafficClasses.add(trafficClass);
+        setTrafficClasses(trafficClasses);
+    }
+
+    private void updateShapers() {
+        final ImmutableSettings settings = inMemory;
+        downloadShaper.setRate(settings.speed * 1024L, settings.burst * 1024L);
+        downloadShaper.setClasses(settings.trafficClasses);
+        uploadShaper.setRate(settings.uploadSpeed * 1024L, settings.burst * 1024L);
+        uploadShaper.setClasses(settings.trafficClasses);
+    }
+
+    public void setExecutor(ConnectionExecutor.Type executor) {
+        inMemory = inMemory.buildUpon().setExecutor(executor).build();
+        sendNotification(UpdateEvent.Type.SETTINGS);
+    }
+
+    public void setWorkerThreads(int workerThreads) {
+        inMemory = inMemory.buildUpon().setWorkerThreads(workerThreads).build();
+        sendNotification(UpdateEvent.Type.SETTINGS);
+    }
+
+    public void setWorkerQueue(int workerQueue) {
+        inMemory = inMemory.buildUpon().setWorkerQueue(workerQueue).build();
+        sendNotification(UpdateEvent.Type.SETTINGS);
+    }
+
+    public void setEngine(Network.Engine engine) {
+        inMemory = inMemory.buildUpon().setEngine(engine).build();
+        sendNotification(UpdateEvent.Type.SETTINGS);
+    }
+
+    /**
+     * @param compressionLevel 1 (fastest) to 9 (smallest), 0 turns compression off
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        inMemory = inMemory.buildUpon().setCompressionLevel(Math.max(0, Math.min(9, compressionLevel))).build();
         sendNotification(UpdateEvent.Type.SETTINGS);
     }
 
@@ -185,9 +280,18 @@ public class HFSMonitor extends Observable implements Observer {
         return logger;
     }
 
+    public void setConnectionExecutor(ConnectionExecutor connectionExecutor) {
+        this.connectionExecutor = connectionExecutor;
+    }
+
     public synchronized void addNetworkInstance(NetworkInstance instance) {
-        instance.start();
         instance.setMonitor(this);
+        try {
+            connectionExecutor.execute(instance);
+        } catch (RejectedExecutionException e) {
+            instance.reject();
+            return;
+        }
         instanceList.add(instance);
         sendNotification(UpdateEvent.Type.PROGRESS);
     }
@@ -199,20 +303,55 @@ public class HFSMonitor extends Observable implements Observer {
 
     public synchronized void stopNet() {
         for (NetworkInstance ni : instanceList) {
-            ni.interrupt();
             ni.stopNetworkInstance();
         }
     }
 
+    public synchronized void addUpload(FileUpload upload) {
+        uploadList.add(upload);
+        sendNotification(UpdateEvent.Type.PROGRESS);
+    }
+
+    public synchronized void removeUpload(FileUpload upload) {
+        uploadList.remove(upload);
+        sendNotification(UpdateEvent.Type.PROGRESS);
+    }
+
+    /**
+     * @return the files being written right now, with their progress
+     */
+    public synchronized List<FileUpload> getUploads() {
+        return new ArrayList<>(uploadList);
+    }
+
+    public int getActiveWorkers() {
+        ConnectionExecutor executor = connectionExecutor;
+        return executor != null ? executor.getActiveWorkers() : 0;
+    }
+
+    public int getQueueDepth() {
+        ConnectionExecutor executor = connectionExecutor;
+        return executor != null ? executor.getQueueDepth() : 0;
+    }
+
     public synchronized LinkedList<NetworkInstance> getNetworkInstances() {
         return instanceList;
     }
 
-    public double getShare() {
-        if (inMemory.speed > 0) {
-            return inMemory.speed / instanceList.size();
-        }
-        return 0;
+    /**
+     * @return the download bandwidth, shared by traffic class and then
+     * fairly between clients. Its classes have the rates and clients of
+     * the downloads right now.
+     */
+    public TrafficShaper getDownloadShaper() {
+        return downloadShaper;
+    }
+
+    /**
+     * @return the upload bandwidth, shared by traffic class and then fairly between clients
+     */
+    public TrafficShaper getUploadShaper() {
+        return uploadShaper;
     }
 
     public void setNetwork(boolean net) {
@@ -24,9 +24,15 @@
 
 package se.bes.mhfs.manager;
 
+import se.bes.mhfs.network.ConnectionExecutor;
+import se.bes.mhfs.network.Network;
+import se.bes.mhfs.network.TrafficClass;
+
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public class ImmutableSettings {
@@ -37,8 +43,18 @@ public class ImmutableSettings {
     public final String upnpIp;
     public final String upnpDevice;
     public final Map<String, File> customFiles;
-
-    private ImmutableSettings(int port, int speed, String baseDir, String uploadDir, String upnpIp, String upnpDevice, HashMap<String, File> customFiles) {
+    public final ConnectionExecutor.Type executor;
+    public final int workerThreads;
+    public final int workerQueue;
+    public final Network.Engine engine;
+    public final int compressionLevel;
+    public final int uploadSpeed;
+    public final int burst;
+    public final List<TrafficClass> trafficClasses;
+
+    private ImmutableSettings(int port, int speed, String baseDir, String uploadDir, String upnpIp, String upnpDevice, HashMap<String, File> customFiles,
+                              ConnectionExecutor.Type executor, int workerThreads, int workerQueue, Network.Engine engine,
+                              int compressionLevel, int uploadSpeed, int burst, ArrayList<TrafficClass> trafficClasses) {
         this.port = port;
         this.speed = speed;
         this.baseDir = baseDir;
@@ -46,6 +62,14 @@ public class ImmutableSettings {
         this.upnpIp = upnpIp;
         this.upnpDevice = upnpDevice;
         this.customFiles = Collections.unmodifiableMap(customFiles);
+        this.executor = executor;
+        this.workerThreads = workerThreads;
+        this.workerQueue = workerQueue;
+        this.engine = engine;
+        this.compressionLevel = compressionLevel;
+        this.uploadSpeed = uploadSpeed;
+        this.burst = burst;
+        this.trafficClasses = Collections.unmodifiableList(trafficClasses);
     }
 
     Builder buildUpon() {
@@ -57,6 +81,14 @@ public class ImmutableSettings {
         b.upnpIp = upnpIp;
         b.upnpDevice = upnpDevice;
         b.customFiles = new HashMap<>(customFiles);
+        b.executor = executor;
+        b.workerThreads = workerThreads;
+        b.workerQueue = workerQueue;
+        b.engine = engine;
+        b.compressionLevel = compressionLevel;
+        b.uploadSpeed = uploadSpeed;
+        b.burst = burst;
+        b.trafficClasses = new ArrayList<>(trafficClasses);
         return b;
     }
 
@@ -73,6 +105,14 @@ public class ImmutableSettings {
         if (baseDir != null ? !baseDir.equals(that.baseDir) : that.baseDir != null) return false;
         if (uploadDir != null ? !uploadDir.equals(that.uploadDir) : that.uploadDir != null) return false;
         if (upnpIp != null ? !upnpIp.equals(that.upnpIp) : that.upnpIp != null) return false;
+        if (executor != that.executor) return false;
+        if (workerThreads != that.workerThreads) return false;
+        if (workerQueue != that.workerQueue) return false;
+        if (engine != that.engine) return false;
+        if (compressionLevel != that.compressionLevel) return false;
+        if (uploadSpeed != that.uploadSpeed) return false;
+        if (burst != that.burst) return false;
+        if (!trafficClasses.equals(that.trafficClasses)) return false;
         if (customFiles != null) {
             if (that.customFiles != null) {
                 if (customFiles.size() == that.customFiles.size()) {
@@ -105,6 +145,14 @@ public class ImmutableSettings {
         private String upnpIp;
         private String upnpDevice;
         private HashMap<String, File> customFiles;
+        private ConnectionExecutor.Type executor;
+        private int workerThreads;
+        private int workerQueue;
+        private Network.Engine engine;
+        private int compressionLevel;
+        private int uploadSpeed;
+        private int burst;
+        private ArrayList<TrafficClass> trafficClasses = new ArrayList<>();
 
         Builder setPort(int port) {
             this.port = port;
@@ -141,6 +189,46 @@ public class ImmutableSettings {
             return this;
         }
 
+        Builder setExecutor(ConnectionExecutor.Type executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        Builder setWorkerThreads(int workerThreads) {
+            this.workerThreads = workerThreads;
+            return this;
+        }
+
+        Builder setWorkerQueue(int workerQueue) {
+            this.workerQueue = workerQueue;
+            return this;
+        }
+
+        Builder setEngine(Network.Engine engine) {
+            this.engine = engine;
+            return this;
+        }
+
+        Builder setCompressionLevel(int compressionLevel) {
+            this.compressionLevel = compressionLevel;
+            return this;
+        }
+
+        Builder setUploadSpeed(int uploadSpeed) {
+            this.uploadSpeed = uploadSpeed;
+            return this;
+        }
+
+        Builder setBurst(int burst) {
+            this.burst = burst;
+            return this;
+        }
+
+        Builder setTrafficClasses(ArrayList<TrafficClass> trafficClasses) {
+            this.trafficClasses = trafficClasses;
+            return this;
+        }
+
         Builder addCustomFile(String name, File file) {
             customFiles.put(name, file);
             return this;
@@ -152,7 +240,8 @@ public class ImmutableSettings {
         }
 
         ImmutableSettings build() {
-            return new ImmutableSettings(port, speed, baseDir, uploadDir, upnpIp, upnpDevice, customFiles);
+            return new ImmutableSettings(port, speed, baseDir, uploadDir, upnpIp, upnpDevice, customFiles,
+                    executor, workerThreads, workerQueue, engine, compressionLevel, uploadSpeed, burst, trafficClasses);
         }
     }
 }
@@ -24,6 +24,10 @@
 
 package se.bes.mhfs.manager;
 
+import se.bes.mhfs.network.ConnectionExecutor;
+import se.bes.mhfs.network.Network;
+import se.bes.mhfs.network.TrafficClass;
+
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -54,6 +58,16 @@ public class SettingsManager {
             buffer.println("UploadDirectory::" + inMemory.uploadDir);
             buffer.println("UPnPInterface::" + inMemory.upnpIp);
             buffer.println("UPnPDevice::" + inMemory.upnpDevice);
+            buffer.println("Executor::" + inMemory.executor);
+            buffer.println("WorkerThreads::" + inMemory.workerThreads);
+            buffer.println("WorkerQueue::" + inMemory.workerQueue);
+            buffer.println("Engine::" + inMemory.engine);
+            buffer.println("CompressionLevel::" + inMemory.compressionLevel);
+            buffer.println("UploadSpeed::" + inMemory.uploadSpeed);
+            buffer.println("Burst::" + inMemory.burst);
+            for (TrafficClass trafficClass : inMemory.trafficClasses) {
+                buffer.println("TrafficClass::" + trafficClass);
+            }
             if (monitor.isCustomList()) {
                 File[] files = monitor.getCustomDirList().getDirFiles();
                 for (File f : files) {
@@ -109,6 +123,62 @@ public class SettingsManager {
                     case "UPnPDevice":
                         monitor.setUpnpDevice(split[1]);
                         break;
+                    case "Executor":
+                        try {
+                            monitor.setExecutor(ConnectionExecutor.Type.valueOf(split[1]));
+                        } catch (IllegalArgumentException ignore) {
+                            monitor.setExecutor(ConnectionExecutor.Type.POOL);
+                        }
+                        break;
+                    case "WorkerThreads":
+                        try {
+                            monitor.setWorkerThreads(Integer.parseInt(split[1]));
+                        } catch (NumberFormatException ignore) {
+                            monitor.setWorkerThreads(HFSMonitor.DEFAULT_WORKER_THREADS);
+                        }
+                        break;
+                    case "WorkerQueue":
+                        try {
+                            monitor.setWorkerQueue(Integer.parseInt(split[1]));
+                        } catch (NumberFormatException ignore) {
+                            monitor.setWorkerQueue(HFSMonitor.DEFAULT_WORKER_QUEUE);
+                        }
+                        break;
+                    case "Engine":
+                        try {
+                            monitor.setEngine(Network.Engine.valueOf(split[1]));
+                        } catch (IllegalArgumentException ignore) {
+                            monitor.setEngine(Network.Engine.BLOCKING);
+                        }
+                        break;
+                    case "CompressionLevel":
+                        try {
+                            monitor.setCompressionLevel(Integer.parseInt(split[1]));
+                        } catch (NumberFormatException ignore) {
+                            monitor.setCompressionLevel(HFSMonitor.DEFAULT_COMPRESSION_LEVEL);
+                        }
+                        break;
+                    case "UploadSpeed":
+                        try {
+                            monitor.setUploadSpeed(Integer.parseInt(split[1]));
+                        } catch (NumberFormatException ignore) {
+                            monitor.setUploadSpeed(0);
+                        }
+                        break;
+                    case "Burst":
+                        try {
+                            monitor.setBurst(Integer.parseInt(split[1]));
+                        } catch (NumberFormatException ignore) {
+                            monitor.setBurst(HFSMonitor.DEFAULT_BURST);
+                        }
+                        break;
+                    case "TrafficClass":
+                        try {
+                            monitor.addTrafficClass(TrafficClass.parse(line.substring("TrafficClass::".length())));
+                        } catch (IllegalArgumentException e) {
+                            System.err.println("Skipping " + e.getMessage());
+                        }
+                        break;
                 }
 
                 line = buffer.readLine();
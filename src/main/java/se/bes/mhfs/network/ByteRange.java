@@ -0,0 +1,123 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Erik Zivkovic
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package se.bes.mhfs.network;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One satisfiable byte range of a Range request header, with helpers for
+ * building single and multipart/byteranges responses.
+ */
+class ByteRange {
+    static final String MULTIPART_BOUNDARY = "MHFS_BYTERANGES_7d3f19ac";
+
+    // More ranges than this look like abuse, the header is ignored then
+    private static final int MAX_RANGES = 16;
+
+    final long start;
+    final long end; // inclusive
+
+    ByteRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    long length() {
+        return end - start + 1;
+    }
+
+    String contentRange(long size) {
+        return "bytes " + start + "-" + end + "/" + size;
+    }
+
+    /**
+     * @return null if the whole file should be sent (no header, or one that
+     * can't be parsed), an empty list if no range can be satisfied
+     */
+    static List<ByteRange> parse(String header, long size) {
+        if (header == null || !header.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+        String[] specs = header.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+
+        List<ByteRange> ranges = new ArrayList<>(specs.length);
+        try {
+            for (String spec : specs) {
+                spec = spec.trim();
+                int dash = spec.indexOf('-');
+                if (dash < 0) {
+                    return null;
+                }
+                String first = spec.substring(0, dash).trim();
+                String last = spec.substring(dash + 1).trim();
+
+                if (first.isEmpty()) {
+                    // Suffix range: the last n bytes
+                    long suffix = Long.parseLong(last);
+                    if (suffix < 0) {
+                        return null;
+                    }
+                    if (suffix > 0 && size > 0) {
+                        ranges.add(new ByteRange(Math.max(0, size - suffix), size - 1));
+                    }
+                } else {
+                    long start = Long.parseLong(first);
+                    long end = last.isEmpty() ? size - 1 : Long.parseLong(last);
+                    if (start < 0 || end < start) {
+                        return null;
+                    }
+                    if (start < size) {
+                        ranges.add(new ByteRange(start, Math.min(end, size - 1)));
+                    }
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return ranges;
+    }
+
+    static String partHeader(String contentType, ByteRange range, long size) {
+        return "\r\n--" + MULTIPART_BOUNDARY + "\r\n"
+                + "Content-Type: " + contentType + "\r\n"
+                + "Content-Range: " + range.contentRange(size) + "\r\n\r\n";
+    }
+
+    static String multipartEnd() {
+        return "\r\n--" + MULTIPART_BOUNDARY + "--\r\n";
+    }
+
+    static long multipartLength(String contentType, List<ByteRange> ranges, long size) {
+        long length = multipartEnd().length();
+        for (ByteRange range : ranges) {
+            length += partHeader(contentType, range, size).length() + range.length();
+        }
+        return length;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Erik Zivkovic
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package se.bes.mhfs.network;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Frames everything written to it as HTTP/1.1 chunks, for responses whose
+ * length is not known when the head is sent. Writes are gathered into
+ * chunks of a fixed size, and each chunk leaves with its size line and
+ * CRLF in a single write. The underlying stream is never closed, so the
+ * connection can be kept alive.
+ */
+class ChunkedOutputStream extends FilterOutputStream {
+
+    // Room in front of the data for the size line, up to 8 hex digits and CRLF
+    private static final int HEAD_ROOM = 10;
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private final byte[] mBuf;
+    private final int mChunkSize;
+    private int mCount;
+    private long mBytesWritten;
+
+    /**
+     * @param chunkSize the most data bytes sent in one chunk
+     */
+    ChunkedOutputStream(OutputStream out, int chunkSize) {
+        super(out);
+        mChunkSize = chunkSize;
+        mBuf = new byte[HEAD_ROOM + chunkSize + 2];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (mCount == mChunkSize) {
+            writeChunk();
+        }
+        mBuf[HEAD_ROOM + mCount++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (mCount == mChunkSize) {
+                writeChunk();
+            }
+            int n = Math.min(len, mChunkSize - mCount);
+            System.arraycopy(b, off, mBuf, HEAD_ROOM + mCount, n);
+            mCount += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Sends what has been written so far as a chunk of its own.
+     */
+    @Override
+    public void flush() throws IOException {
+        writeChunk();
+        out.flush();
+    }
+
+    /**
+     * Ends the body with the last chunk.
+     */
+    void finishChunks() throws IOException {
+        writeChunk();
+        out.write(LAST_CHUNK);
+        out.flush();
+        mBytesWritten += LAST_CHUNK.length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+
+    /**
+     * @return bytes put on the wire so far, framing included
+     */
+    long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    private void writeChunk() throws IOException {
+        if (mCount == 0) {
+            // An empty chunk would end the body
+            return;
+        }
+        int end = HEAD_ROOM + mCount;
+        mBuf[end] = '\r';
+        mBuf[end + 1] = '\n';
+
+        // The size line is written backwards, right in front of the data
+        int start = HEAD_ROOM - 2;
+        mBuf[start] = '\r';
+        mBuf[start + 1] = '\n';
+        int size = mCount;
+        do {
+            mBuf[--start] = HEX[size & 0xf];
+            size >>>= 4;
+        } while (size != 0);
+
+        out.write(mBuf, start, end + 2 - start);
+        mBytesWritten += end + 2 - start;
+        mCount = 0;
+    }
+}
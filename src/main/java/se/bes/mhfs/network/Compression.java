@@ -0,0 +1,253 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Erik Zivkovic
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package se.bes.mhfs.network;
+
+import se.bes.mhfs.filesystem.FSList;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Content-Encoding negotiation and the gzip/deflate encoders for responses.
+ */
+class Compression {
+
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+    static final String BROTLI = "br";
+
+    /**
+     * Smaller bodies barely shrink, the encoding overhead eats the gain.
+     */
+    static final int MIN_SIZE = 1024;
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private static final String[] COMPRESSIBLE_TYPES = {
+            "text/", "application/json", "application/javascript", "application/xml", "image/svg+xml"
+    };
+
+    private static final byte[] GZIP_HEADER = {
+            0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff
+    };
+
+    static boolean isCompressible(String contentType) {
+        for (String type : COMPRESSIBLE_TYPES) {
+            if (contentType.startsWith(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Picks an encoding from an Accept-Encoding header. gzip wins over
+     * deflate when the client likes both equally.
+     *
+     * @param level the configured compression level, 0 turns compression off
+     * @return GZIP, DEFLATE or null to send the body as is
+     */
+    static String negotiate(String acceptEncoding, int level) {
+        if (level <= 0 || acceptEncoding == null) {
+            return null;
+        }
+        double gzip = quality(acceptEncoding, GZIP);
+        double deflate = quality(acceptEncoding, DEFLATE);
+        if (gzip <= 0 && deflate <= 0) {
+            return null;
+        }
+        return gzip >= deflate ? GZIP : DEFLATE;
+    }
+
+    /**
+     * @return the q-value the client gives a content coding, 0 if it is not acceptable
+     */
+    private static double quality(String acceptEncoding, String coding) {
+        double q = -1;
+        double any = 0;
+        for (String part : acceptEncoding.split(",")) {
+            String[] params = part.split(";");
+            String name = params[0].trim().toLowerCase();
+            if (name.equals("x-gzip")) {
+                name = GZIP;
+            }
+            if (!name.equals(coding) && !name.equals("*")) {
+                continue;
+            }
+            double value = 1;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        value = Double.parseDouble(param.substring(2));
+                    } catch (NumberFormatException ignore) {
+                        value = 0;
+                    }
+                }
+            }
+            if (name.equals(coding)) {
+                q = value;
+            } else {
+                any = value;
+            }
+        }
+        return q >= 0 ? q : any;
+    }
+
+    /**
+     * A precompressed copy of a file, see FSList.SIDECAR_SUFFIXES.
+     */
+    static final class Sidecar {
+        final File file;
+        final String encoding;
+
+        private Sidecar(File file, String encoding) {
+            this.file = file;
+            this.encoding = encoding;
+        }
+    }
+
+    /**
+     * Looks for foo.txt.br or foo.txt.gz next to foo.txt. Brotli wins when the
+     * client likes both equally, and a copy older than the file is never used.
+     *
+     * @return the sidecar to send instead of f, or null to send f
+     */
+    static Sidecar findSidecar(File f, String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        Sidecar best = null;
+        double bestQuality = 0;
+        for (String suffix : FSList.SIDECAR_SUFFIXES) {
+            String encoding = suffix.equals(".br") ? BROTLI : GZIP;
+            double q = quality(acceptEncoding, encoding);
+            if (q <= bestQuality) {
+                continue;
+            }
+            File copy = new File(f.getPath() + suffix);
+            if (copy.isFile() && copy.lastModified() >= f.lastModified()) {
+                best = new Sidecar(copy, encoding);
+                bestQuality = q;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return the encoding to send a whole file with, or null to send it as is.
+     * Byte ranges always refer to the plain file, and the compressed length is
+     * only known afterwards so the response has to be chunked, which needs HTTP/1.1.
+     */
+    static String forFile(RequestHeaders request, String contentType, long length, int level) {
+        if (length < MIN_SIZE || !isCompressible(contentType) || request.get("Range") != null
+                || !request.getRequestLine().endsWith(" HTTP/1.1")) {
+            return null;
+        }
+        return negotiate(request.get("Accept-Encoding"), level);
+    }
+
+    /**
+     * Each encoding of a resource is a representation of its own and needs its own validator.
+     */
+    static String variantETag(String etag, String encoding) {
+        if (encoding == null) {
+            return etag;
+        }
+        return etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+    }
+
+    static byte[] compress(byte[] data, int length, String encoding, int level) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(length / 4 + 64);
+        Encoder encoder = new Encoder(bytes, encoding, level);
+        try {
+            encoder.write(data, 0, length);
+            encoder.finishEncoding();
+        } finally {
+            encoder.release();
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Streams gzip or deflate (zlib) encoded data into another stream,
+     * with the compression level of the settings.
+     */
+    static final class Encoder extends DeflaterOutputStream {
+        private final boolean mGzip;
+        private final CRC32 mCrc = new CRC32();
+
+        Encoder(OutputStream out, String encoding, int level) throws IOException {
+            // gzip brings its own header and trailer, so its deflater must not add the zlib ones
+            super(out, new Deflater(level, GZIP.equals(encoding)), BUFFER_SIZE);
+            mGzip = GZIP.equals(encoding);
+            if (mGzip) {
+                out.write(GZIP_HEADER);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            super.write(b, off, len);
+            if (mGzip) {
+                mCrc.update(b, off, len);
+            }
+        }
+
+        /**
+         * Writes out what is left and the trailer. Unlike close(), the
+         * underlying stream is left open.
+         */
+        void finishEncoding() throws IOException {
+            finish();
+            if (mGzip) {
+                byte[] trailer = new byte[8];
+                putIntLE(trailer, 0, mCrc.getValue());
+                putIntLE(trailer, 4, def.getBytesRead());
+                out.write(trailer);
+            }
+            out.flush();
+        }
+
+        /**
+         * Frees the native deflater, must always be called when done.
+         */
+        void release() {
+            def.end();
+        }
+
+        private static void putIntLE(byte[] b, int off, long value) {
+            b[off] = (byte) value;
+            b[off + 1] = (byte) (value >> 8);
+            b[off + 2] = (byte) (value >> 16);
+            b[off + 3] = (byte) (value >> 24);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Erik Zivkovic
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package se.bes.mhfs.network;
+
+import se.bes.mhfs.logger.MHFSLogger;
+import se.bes.mhfs.manager.ImmutableSettings;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs accepted connections on either a bounded pool of platform threads or,
+ * when the runtime supports it, one virtual thread per connection.
+ */
+public class ConnectionExecutor {
+
+    public enum Type {
+        POOL,
+        VIRTUAL,
+    }
+
+    private final ExecutorService executor;
+    private final ThreadPoolExecutor pool;
+    private final AtomicInteger active = new AtomicInteger();
+
+    private ConnectionExecutor(ExecutorService executor) {
+        this.executor = executor;
+        this.pool = executor instanceof ThreadPoolExecutor ? (ThreadPoolExecutor) executor : null;
+    }
+
+    public static ConnectionExecutor create(ImmutableSettings settings, MHFSLogger logger) {
+        if (settings.executor == Type.VIRTUAL) {
+            ExecutorService virtual = newVirtualThreadExecutor();
+            if (virtual != null) {
+                return new ConnectionExecutor(virtual);
+            }
+            logger.append("Virtual threads are not supported by this Java runtime, using a worker pool");
+        }
+
+        final int workers = Math.max(1, settings.workerThreads);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, settings.workerQueue)), new WorkerThreadFactory());
+        pool.allowCoreThreadTimeOut(true);
+        return new ConnectionExecutor(pool);
+    }
+
+    /**
+     * Virtual threads only exist on Java 21+, so they are looked up reflectively
+     * to keep running on older runtimes.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @throws RejectedExecutionException if the pool and its queue are full
+     */
+    public void execute(Runnable connection) {
+        executor.execute(() -> {
+            active.incrementAndGet();
+            try {
+                connection.run();
+            } finally {
+                active.decrementAndGet();
+            }
+        });
+    }
+
+    public int getActiveWorkers() {
+        return active.get();
+    }
+
+    public int getQueueDepth() {
+        return pool != null ? pool.getQueue().size() : 0;
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "MHFS-worker-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Erik Zivkovic
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package se.bes.mhfs.network;
+
+import se.bes.mhfs.filesystem.CustomDirList;
+import se.bes.mhfs.filesystem.DirEntry;
+import se.bes.mhfs.filesystem.FSList;
+import se.bes.mhfs.filesystem.SortOrder;
+import se.bes.mhfs.manager.HFSMonitor;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.RoundingMode;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.DecimalFormat;
+
+/**
+ * Renders the HTML directory listings, shared by both server engines.
+ * Only the page is rendered, the caller sends the response header.
+ * Rendered pages are cached until the ETag of the listing changes.
+ */
+class DirListing {
+
+    private static final String NL = System.lineSeparator();
+    private static final PageCache sPages = new PageCache();
+
+    /**
+     * @param etag the plain validator of the custom list, without encoding variant
+     */
+    static PageCache.Page customPage(HFSMonitor monitor, ListingView view, String etag) throws IOException {
+        CustomDirList customDirList = monitor.getCustomDirList();
+        return sPages.get("custom?" + view.key(), etag, () -> renderCustomDirList(customDirList, view));
+    }
+
+    /**
+     * @param dirs  the directories in place, as listed by the caller in view.sort order
+     * @param files the files in place, as listed by the caller in view.sort order
+     * @param etag  the plain validator of dirs and files, without encoding variant
+     */
+    static PageCache.Page standardPage(HFSMonitor monitor, String place, ListingView view, DirEntry[] dirs,
+                                       DirEntry[] files, String etag) throws IOException {
+        FSList fs = monitor.getFSList();
+        // The same place is another directory once the base directory changes
+        return sPages.get(monitor.getInMemory().baseDir + "\n" + place + "?" + view.key(), etag,
+                () -> renderStandardDirList(fs, place, view, dirs, files));
+    }
+
+    /*
+     * append has appended \\ already
+     */
+    private static byte[] renderCustomDirList(CustomDirList customDirList, ListingView view) {
+        StringBuilder page = new StringBuilder(NetworkInstance.HTML_BODY_BEGIN);
+        appendSortBar(page, "", view);
+        page.append("<table><tr>").append(NL);
+
+        String[] files = customDirList.getDirStrings(view.sort);
+        DecimalFormat kB = kBFormat();
+
+        for (int i = 0; i < files.length; i++) {
+            if (!view.contains(i)) {
+                continue;
+            }
+            String s = files[view.descending ? files.length - 1 - i : i];
+            page.append("<td align=\"right\" class=\"bread\">[ ")
+                    .append(kB.format((double) customDirList.lookup(s).length() / 1024d))
+                    .append(" kB ] </td><td class=\"bread\"><a href=\"/").append(s).append("\">")
+                    .append(s).append("</a></td><tr>").append(NL);
+        }
+        page.append("</tr></table>").append(NL);
+        appendPager(page, "", view, view.page < view.pageCount(files.length));
+        page.append(NetworkInstance.HTML_END);
+        return page.toString().getBytes(Charset.defaultCharset());
+    }
+
+    private static byte[] renderStandardDirList(FSList fs, String place, ListingView view, DirEntry[] dirs,
+                                                DirEntry[] files) {
+        StringBuilder page = new StringBuilder(NetworkInstance.HTML_BODY_BEGIN);
+        appendSortBar(page, place, view);
+        page.append("<table><tr>").append(NL);
+        appendUpDirRow(page, fs, place);
+
+        long row = 0;
+        for (int i = 0; i < dirs.length; i++, row++) {
+            if (view.contains(row)) {
+                appendDirRow(page, place, dirs[view.descending ? dirs.length - 1 - i : i].getName());
+            }
+        }
+
+        DecimalFormat kB = kBFormat();
+        for (int i = 0; i < files.length; i++, row++) {
+            if (view.contains(row)) {
+                DirEntry s = files[view.descending ? files.length - 1 - i : i];
+                appendFileRow(page, kB, place, s.getName(), s.length());
+            }
+        }
+        page.append("</tr></table>").append(NL);
+        appendPager(page, place, view, view.page < view.pageCount(row));
+        page.append(NetworkInstance.HTML_END);
+        return page.toString().getBytes(Charset.defaultCharset());
+    }
+
+    /**
+     * Writes the standard listing of a directory too large to snapshot as
+     * it is read, a row at a time. Directories still come before files, so
+     * the directory is read twice; only one entry is held at a time.
+     * Sorting would need the whole directory in memory, so these listings
+     * keep the order they are read in and only the paging of view applies.
+     */
+    static void streamStandardDirList(OutputStream out, FSList fs, String place, ListingView view) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, Charset.defaultCharset()), ResponseWriter.BUFFER_SIZE);
+        StringBuilder row = new StringBuilder(NetworkInstance.HTML_BODY_BEGIN);
+        row.append("<table><tr>").append(NL);
+        appendUpDirRow(row, fs, place);
+        writer.append(row);
+
+        long index = 0;
+        boolean more = false;
+        for (boolean directories : new boolean[]{true, false}) {
+            DecimalFormat kB = kBFormat();
+            try (DirectoryStream<Path> entries = fs.openDirStream(place)) {
+                for (Path entry : entries) {
+                    BasicFileAttributes attributes;
+                    try {
+                        attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+                    } catch (IOException e) {
+                        // Gone since it was listed
+                        continue;
+                    }
+                    boolean listed = directories ? attributes.isDirectory() : attributes.isRegularFile();
+                    if (!listed) {
+                        continue;
+                    }
+                    if (view.isPaged() && index >= view.first() + view.limit) {
+                        more = true;
+                        break;
+                    }
+                    if (view.contains(index++)) {
+                        row.setLength(0);
+                        if (directories) {
+                            appendDirRow(row, place, entry.getFileName().toString());
+                        } else {
+                            appendFileRow(row, kB, place, entry.getFileName().toString(), attributes.size());
+                        }
+                        writer.append(row);
+                    }
+                }
+            } catch (DirectoryIteratorException e) {
+                throw e.getCause();
+            }
+            if (more) {
+                break;
+            }
+        }
+        row.setLength(0);
+        row.append("</tr></table>").append(NL);
+        appendPager(row, place, view, more);
+        row.append(NetworkInstance.HTML_END);
+        writer.append(row);
+        writer.flush();
+    }
+
+    private static void appendSortBar(StringBuilder page, String place, ListingView view) {
+        page.append("Sort by:");
+        for (SortOrder order : SortOrder.values()) {
+            page.append(" <a href=\"").append(place).append('?').append(view.query(order, false)).append("\">")
+                    .append(order.name().toLowerCase()).append("</a>");
+        }
+        page.append(" | <a href=\"").append(place).append('?').append(view.query(view.sort, !view.descending))
+                .append("\">reverse</a><br/>").append(NL);
+    }
+
+    /**
+     * Links to the pages before and after this one, nothing if the listing is not paged.
+     */
+    private static void appendPager(StringBuilder page, String place, ListingView view, boolean hasNext) {
+        if (!view.isPaged()) {
+            return;
+        }
+        if (view.page > 1) {
+            page.append("<a href=\"").append(place).append('?').append(view.query(view.page - 1))
+                    .append("\">&lt; previous</a> ");
+        }
+        page.append("page ").append(view.page);
+        if (hasNext) {
+            page.append(" <a href=\"").append(place).append('?').append(view.query(view.page + 1))
+                    .append("\">next &gt;</a>");
+        }
+        page.append("<br/>").append(NL);
+    }
+
+    private static void appendUpDirRow(StringBuilder page, FSList fs, String place) {
+        String[] upDirSplit = place.split("/");
+        StringBuilder upDir = new StringBuilder();
+
+        for (int i = 0; i < upDirSplit.length - 1; i++) {
+            upDir.append(upDirSplit[i]).append('/');
+        }
+
+        if (!fs.isBaseDirectory(place))
+            page.append("<td align=\"right\" class=\"bread\">[ dir ] </td>")
+                    .append("<td class=\"bread\"><a href=\"").append(upDir).append("\">..")
+                    .append("</a></td><tr>").append(NL);
+    }
+
+    private static void appendDirRow(StringBuilder page, String place, String name) {
+        page.append("<td align=\"right\" class=\"bread\">[ dir ] </td>")
+                .append("<td class=\"bread\"><a href=\"").append(place).append('/')
+                .append(name).append("\">").append(name).append("</a></td><tr>").append(NL);
+    }
+
+    private static void appendFileRow(StringBuilder page, DecimalFormat kB, String place, String name, long length) {
+        page.append("<td align=\"right\" class=\"bread\">[ ").append(kB.format((double) length / 1024d))
+                .append(" kB ] </td><td class=\"bread\"><a href=\"").append(place).append('/')
+                .append(name).append("\">").append(name).append("</a></td><tr>").append(NL);
+    }
+
+    /**
+     * Formats sizes like String.format("%.2f") did, without parsing a format string per file.
+     */
+    private static DecimalFormat kBFormat() {
+        DecimalFormat format = new DecimalFormat("0.00");
+        format.setRoundingMode(RoundingMode.HALF_UP);
+        return format;
+    }
+}
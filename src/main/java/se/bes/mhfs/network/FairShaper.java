@@ -0,0 +1,260 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Erik Zivkovic
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package se.bes.mhfs.network;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shares one direction of bandwidth fairly between clients, then between
+ * the connections of each client. Every client with an open transfer gets
+ * its own TokenBucket with an equal part of the rate, and all of them draw
+ * on the total as well. A client that has not moved anything for a moment,
+ * like one that reads slower than its share, is left out when the rate is
+ * divided, so its share goes to the busy clients. Connections of one client
+ * wait on the same bucket, so opening more of them does not get more.
+ */
+public class FairShaper {
+    /**
+     * Clients that moved nothing for this long do not count when dividing the rate.
+     */
+    private static final long ACTIVE_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+    private static final long REBALANCE_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final TokenBucket mTotal = new TokenBucket();
+    private final Map<InetAddress, Client> mClients = new HashMap<>();
+    private final TrafficShaper mOwner;
+    private final TokenBucket mParent;
+    private final RateMeter mMeter = new RateMeter();
+    private long mRate;
+    private long mBurst;
+    private volatile int mTransfers;
+    private volatile long mLastTakeNanos;
+    private volatile long mRebalancedNanos;
+
+    public FairShaper() {
+        this(null, null);
+    }
+
+    /**
+     * @param owner  told when transfers come and go, so it can divide its rate again
+     * @param parent also drawn on by every transfer, null for none
+     */
+    FairShaper(TrafficShaper owner, TokenBucket parent) {
+        mOwner = owner;
+        mParent = parent;
+    }
+
+    /**
+     * @param bytesPerSecond for all clients together, 0 for unlimited
+     * @param burstBytes     how much may be sent at once after being idle
+     */
+    public synchronized void setRate(long bytesPerSecond, long burstBytes) {
+        mRate = Math.max(0, bytesPerSecond);
+        mBurst = Math.max(0, burstBytes);
+        mTotal.setRate(mRate, mBurst);
+        rebalance(System.nanoTime());
+    }
+
+    /**
+     * Starts a transfer for address, {@link Client#close()} it when done.
+     */
+    public Client open(InetAddress address) {
+        Client client;
+        synchronized (this) {
+            client = mClients.get(address);
+            if (client == null) {
+                client = new Client(address);
+                mClients.put(address, client);
+            }
+            client.mTransfers++;
+            mTransfers++;
+            mLastTakeNanos = client.mLastTakeNanos = System.nanoTime();
+            rebalance(mLastTakeNanos);
+        }
+        if (mOwner != null) {
+            mOwner.rebalance();
+        }
+        return client;
+    }
+
+    /**
+     * @return the clients with open transfers
+     */
+    public synchronized List<Client> getClients() {
+        return new ArrayList<>(mClients.values());
+    }
+
+    /**
+     * @return open transfers of all clients
+     */
+    public int getTransfers() {
+        return mTransfers;
+    }
+
+    /**
+     * @return kB/s of all clients over about the last second
+     */
+    public double getRate() {
+        return mMeter.getRate();
+    }
+
+    /**
+     * @return bytes moved since this was created
+     */
+    public long getBytes() {
+        return mMeter.getBytes();
+    }
+
+    /**
+     * @return true if a transfer moved anything lately
+     */
+    boolean isActive(long now) {
+        return mTransfers > 0 && now - mLastTakeNanos < ACTIVE_NANOS;
+    }
+
+    private void close(Client client) {
+        synchronized (this) {
+            if (--client.mTransfers == 0) {
+                mClients.remove(client.mAddress);
+            }
+            mTransfers--;
+            rebalance(System.nanoTime());
+        }
+        if (mOwner != null) {
+            mOwner.rebalance();
+        }
+    }
+
+    private void maybeRebalance(long now) {
+        if (now - mRebalancedNanos > REBALANCE_NANOS) {
+            synchronized (this) {
+                rebalance(now);
+            }
+        }
+    }
+
+    private void rebalance(long now) {
+        mRebalancedNanos = now;
+        int active = 0;
+        for (Client client : mClients.values()) {
+            if (client.isActive(now)) {
+                active++;
+            }
+        }
+        long share = mRate > 0 ? Math.max(1, mRate / Math.max(1, active)) : 0;
+        for (Client client : mClients.values()) {
+            // Idle clients get a full share too, they are back in the division once they move again
+            client.mBucket.setRate(share, mBurst);
+        }
+    }
+
+    /**
+     * One client's part of the bandwidth, shared by its transfers.
+     */
+    public final class Client {
+        private final InetAddress mAddress;
+        private final TokenBucket mBucket = new TokenBucket();
+        private int mTransfers; // guarded by the FairShaper
+        private volatile long mLastTakeNanos;
+        private final RateMeter mMeter = new RateMeter();
+
+        private Client(InetAddress address) {
+            mAddress = address;
+        }
+
+        public String getHost() {
+            return mAddress.getHostAddress();
+        }
+
+        public int getTransfers() {
+            synchronized (FairShaper.this) {
+                return mTransfers;
+            }
+        }
+
+        /**
+         * @return kB/s over about the last second
+         */
+        public double getRate() {
+            return mMeter.getRate();
+        }
+
+        public boolean isLimited() {
+            return mTotal.isLimited() || (mParent != null && mParent.isLimited());
+        }
+
+        /**
+         * @see TokenBucket#chunkSize(int)
+         */
+        public int chunkSize(int preferred) {
+            return mBucket.chunkSize(preferred);
+        }
+
+        /**
+         * Takes tokens for bytes that have been moved, negative bytes give
+         * back tokens taken ahead that were not used.
+         *
+         * @return nanoseconds to wait before moving more
+         */
+        public long take(long bytes) {
+            long now = System.nanoTime();
+            mMeter.add(bytes);
+            FairShaper.this.mMeter.add(bytes);
+            if (bytes > 0) {
+                mLastTakeNanos = now;
+                FairShaper.this.mLastTakeNanos = now;
+            }
+            maybeRebalance(now);
+            long wait = Math.max(mBucket.take(bytes), mTotal.take(bytes));
+            if (mOwner != null) {
+                mOwner.maybeRebalance(now);
+            }
+            return mParent != null ? Math.max(wait, mParent.take(bytes)) : wait;
+        }
+
+        /**
+         * Takes tokens for bytes that have been moved and sleeps off any debt.
+         */
+        public void consume(long bytes) throws InterruptedException {
+            long wait = take(bytes);
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+        }
+
+        public void close() {
+            FairShaper.this.close(this);
+        }
+
+        private boolean isActive(long now) {
+            return mTransfers > 0 && now - mLastTakeNanos < ACTIVE_NANOS;
+        }
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Erik Zivkovic
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package se.bes.mhfs.network;
+
+import se.bes.mhfs.filesystem.CustomDirList;
+import se.bes.mhfs.filesystem.DirEntry;
+import se.bes.mhfs.filesystem.FSList;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Writes directory listings as JSON for scripts and sync tools:
+ * <pre>
+ * {"path":"/dir","etag":"W/\"..\"","entries":[
+ *   {"name":"a.txt","type":"file","size":5,"mtime":1460000000000,"etag":"\"5-..\""}],
+ *  "next":"cursor"}
+ * </pre>
+ * mtime is in milliseconds since the epoch. next is null on the last
+ * page, otherwise it is passed back as ?cursor= to get the following one.
+ * Entries are written as they are produced, nothing is cached.
+ */
+class JsonListing {
+
+    /**
+     * The rows of a listing in the order they are shown.
+     */
+    private interface Rows {
+        int size();
+
+        String name(int row);
+
+        DirEntry entry(int row);
+
+        boolean isDir(int row);
+    }
+
+    /**
+     * The JSON and the HTML of a listing are different representations,
+     * so they get different validators.
+     *
+     * @param plainETag the validator of the listing, without encoding variant
+     */
+    static String eTag(String plainETag) {
+        return Compression.variantETag(plainETag, "json");
+    }
+
+    /**
+     * @param etag from eTag()
+     */
+    static void writeCustom(Writer out, CustomDirList customDirList, ListingView view, String etag) throws IOException {
+        String[] names = customDirList.getDirStrings(view.sort);
+        writeRows(out, "/", etag, view, new Rows() {
+            @Override
+            public int size() {
+                return names.length;
+            }
+
+            @Override
+            public String name(int row) {
+                return names[view.descending ? names.length - 1 - row : row];
+            }
+
+            @Override
+            public DirEntry entry(int row) {
+                File f = customDirList.lookup(name(row));
+                return f != null ? DirEntry.of(f) : null;
+            }
+
+            @Override
+            public boolean isDir(int row) {
+                return false;
+            }
+        });
+    }
+
+    /**
+     * @param dirs  the directories in place, in view.sort order
+     * @param files the files in place, in view.sort order
+     * @param etag  from eTag()
+     */
+    static void writeStandard(Writer out, String place, ListingView view, DirEntry[] dirs,
+                              DirEntry[] files, String etag) throws IOException {
+        writeRows(out, place.isEmpty() ? "/" : place, etag, view, new Rows() {
+            @Override
+            public int size() {
+                return dirs.length + files.length;
+            }
+
+            @Override
+            public String name(int row) {
+                return entry(row).getName();
+            }
+
+            @Override
+            public DirEntry entry(int row) {
+                if (row < dirs.length) {
+                    return dirs[view.descending ? dirs.length - 1 - row : row];
+                }
+                row -= dirs.length;
+                return files[view.descending ? files.length - 1 - row : row];
+            }
+
+            @Override
+            public boolean isDir(int row) {
+                return row < dirs.length;
+            }
+        });
+    }
+
+    private static void writeRows(Writer out, String path, String etag, ListingView view, Rows rows) throws IOException {
+        int size = rows.size();
+        int start = (int) Math.min(resume(view, rows), size);
+        int end = view.isPaged() ? (int) Math.min((long) start + view.limit, size) : size;
+
+        StringBuilder row = new StringBuilder();
+        appendHead(row, path, etag);
+        boolean first = true;
+        for (int i = start; i < end; i++) {
+            DirEntry f = rows.entry(i);
+            if (f == null) {
+                // Unshared since the names were taken
+                continue;
+            }
+            if (!first) {
+                row.append(',');
+            }
+            first = false;
+            appendEntry(row, rows.name(i), rows.isDir(i), rows.isDir(i) ? 0 : f.length(), f.lastModified());
+            out.append(row);
+            row.setLength(0);
+        }
+        appendTail(row, end < size ? ListingView.cursor(end, rows.name(end)) : null);
+        out.append(row);
+        out.flush();
+    }
+
+    /**
+     * @return the row a cursor points at. If entries before it have come or
+     * gone the row has moved, so it is looked up by name; an entry that is
+     * gone itself leaves only the old row number to go on.
+     */
+    private static long resume(ListingView view, Rows rows) {
+        if (view.cursorRow < 0) {
+            return view.first();
+        }
+        int size = rows.size();
+        if (view.cursorRow < size && rows.name((int) view.cursorRow).equals(view.cursorName)) {
+            return view.cursorRow;
+        }
+        for (int i = 0; i < size; i++) {
+            if (rows.name(i).equals(view.cursorName)) {
+                return i;
+            }
+        }
+        return view.cursorRow;
+    }
+
+    /**
+     * Writes the listing of a directory too large to snapshot as it is read,
+     * see {@link DirListing#streamStandardDirList}. Entries keep the order
+     * they are read in and cursors are plain row numbers; there is no etag.
+     */
+    static void streamStandard(Writer out, FSList fs, String place, ListingView view) throws IOException {
+        long start = view.cursorRow >= 0 ? view.cursorRow : view.first();
+        StringBuilder row = new StringBuilder();
+        appendHead(row, place.isEmpty() ? "/" : place, null);
+        out.append(row);
+
+        long index = 0;
+        String next = null;
+        boolean first = true;
+        for (boolean directories : new boolean[]{true, false}) {
+            try (DirectoryStream<Path> entries = fs.openDirStream(place)) {
+                for (Path entry : entries) {
+                    BasicFileAttributes attributes;
+                    try {
+                        attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+                    } catch (IOException e) {
+                        // Gone since it was listed
+                        continue;
+                    }
+                    boolean listed = directories ? attributes.isDirectory() : attributes.isRegularFile();
+                    if (!listed) {
+                        continue;
+                    }
+                    String name = entry.getFileName().toString();
+                    if (view.isPaged() && index >= start + view.limit) {
+                        next = ListingView.cursor(index, name);
+                        break;
+                    }
+                    if (index++ >= start) {
+                        row.setLength(0);
+                        if (!first) {
+                            row.append(',');
+                        }
+                        first = false;
+                        appendEntry(row, name, directories, directories ? 0 : attributes.size(),
+                                attributes.lastModifiedTime().toMillis());
+                        out.append(row);
+                    }
+                }
+            } catch (DirectoryIteratorException e) {
+                throw e.getCause();
+            }
+            if (next != null) {
+                break;
+            }
+        }
+        row.setLength(0);
+        appendTail(row, next);
+        out.append(row);
+        out.flush();
+    }
+
+    private static void appendHead(StringBuilder json, String path, String etag) {
+        json.append("{\"path\":");
+        appendString(json, path);
+        json.append(",\"etag\":");
+        appendString(json, etag);
+        json.append(",\"entries\":[");
+    }
+
+    private static void appendTail(StringBuilder json, String next) {
+        json.append("],\"next\":");
+        appendString(json, next);
+        json.append("}\n");
+    }
+
+    private static void appendEntry(StringBuilder json, String name, boolean dir, long size, long mtime) {
+        json.append("\n{\"name\":");
+        appendString(json, name);
+        json.append(",\"type\":\"").append(dir ? "dir" : "file")
+                .append("\",\"size\":").append(size)
+                .append(",\"mtime\":").append(mtime)
+                .append(",\"etag\":");
+        appendString(json, Validators.fileETag(size, mtime));
+        json.append('}');
+    }
+
+    /**
+     * Appends s as a JSON string literal, or null.
+     */
+    private static void appendString(StringBuilder json, String s) {
+        if (s == null) {
+            json.append("null");
+            return;
+        }
+        json.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+            }
+        }
+        json.append('"');
+    }
+}
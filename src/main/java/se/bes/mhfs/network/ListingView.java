@@ -0,0 +1,223 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Erik Zivkovic
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package se.bes.mhfs.network;
+
+import se.bes.mhfs.filesystem.SortOrder;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+
+/**
+ * How a listing is to be shown, from the ?sort=, ?order=, ?page= and
+ * ?limit= query parameters. Pages are numbered from 1 and run over the
+ * directories first, then the files.
+ * <p>
+ * JSON listings are asked for with ?format=json or an Accept header that
+ * prefers application/json, and page with the opaque ?cursor= they hand
+ * out instead of page numbers.
+ */
+class ListingView {
+    static final int DEFAULT_LIMIT = 100;
+    static final int MAX_LIMIT = 10000;
+
+    static final ListingView DEFAULT = new ListingView(null, false, 0, 0, false, -1, null);
+
+    final SortOrder sort;
+    final boolean descending;
+    final int page;
+    final int limit; // 0 when not paged
+    final boolean json;
+    final long cursorRow; // -1 without a cursor
+    final String cursorName;
+
+    private ListingView(SortOrder sort, boolean descending, int page, int limit,
+                        boolean json, long cursorRow, String cursorName) {
+        this.sort = sort;
+        this.descending = descending;
+        this.page = page;
+        this.limit = limit;
+        this.json = json;
+        this.cursorRow = cursorRow;
+        this.cursorName = cursorName;
+    }
+
+    /**
+     * Unknown or malformed values fall back to the defaults.
+     *
+     * @param accept the Accept header of the request, or null
+     */
+    static ListingView from(Map<String, String> query, String accept) {
+        SortOrder sort = SortOrder.parse(query.get("sort"));
+        boolean descending = "desc".equalsIgnoreCase(query.get("order"));
+        int page = parseInt(query.get("page"), 0);
+        int limit = parseInt(query.get("limit"), 0);
+        boolean json = wantsJson(query.get("format"), accept);
+
+        long cursorRow = -1;
+        String cursorName = null;
+        String cursor = json ? query.get("cursor") : null;
+        if (cursor != null) {
+            try {
+                String decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+                int colon = decoded.indexOf(':');
+                cursorRow = Long.parseLong(decoded.substring(0, colon));
+                cursorName = decoded.substring(colon + 1);
+            } catch (IllegalArgumentException | IndexOutOfBoundsException ignore) {
+                // Not one of ours, start from the beginning
+                cursorRow = -1;
+            }
+            if (cursorRow >= 0) {
+                page = 1;
+            }
+        }
+
+        if (page > 0 || limit > 0) {
+            page = Math.max(1, page);
+            limit = limit > 0 ? Math.min(limit, MAX_LIMIT) : DEFAULT_LIMIT;
+        } else {
+            page = 0;
+            limit = 0;
+        }
+        if (sort == null && !descending && limit == 0 && !json) {
+            return DEFAULT;
+        }
+        return new ListingView(sort, descending, page, limit, json, Math.max(-1, cursorRow), cursorName);
+    }
+
+    /**
+     * An explicit ?format= wins, otherwise JSON is sent to clients that
+     * accept it but not HTML, so browsers keep getting pages.
+     */
+    private static boolean wantsJson(String format, String accept) {
+        if (format != null) {
+            return format.equalsIgnoreCase("json");
+        }
+        return accept != null && accept.contains("application/json") && !accept.contains("text/html");
+    }
+
+    /**
+     * The cursor handed out for resuming a listing at row, whose entry is name.
+     * The name lets the listing find its place again when entries before it
+     * have come or gone since.
+     */
+    static String cursor(long row, String name) {
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString((row + ":" + name).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Splits a request target into its path and query parameters.
+     *
+     * @return the path, query parameters are put into query
+     */
+    static String splitTarget(String target, Map<String, String> query) {
+        int q = target.indexOf('?');
+        if (q < 0) {
+            return target;
+        }
+        for (String pair : target.substring(q + 1).split("&")) {
+            int eq = pair.indexOf('=');
+            String name = eq < 0 ? pair : pair.substring(0, eq);
+            String value = eq < 0 ? "" : pair.substring(eq + 1);
+            try {
+                query.put(URLDecoder.decode(name, StandardCharsets.UTF_8.name()),
+                        URLDecoder.decode(value, StandardCharsets.UTF_8.name()));
+            } catch (UnsupportedEncodingException | IllegalArgumentException ignore) {
+                // A malformed parameter is left out
+            }
+        }
+        return target.substring(0, q);
+    }
+
+    private static int parseInt(String value, int fallback) {
+        if (value == null) {
+            return fallback;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException ignore) {
+            return fallback;
+        }
+    }
+
+    boolean isPaged() {
+        return limit > 0;
+    }
+
+    /**
+     * @return index of the first row on this page, ignoring any cursor
+     */
+    long first() {
+        return isPaged() ? (long) (page - 1) * limit : 0;
+    }
+
+    /**
+     * @return true if row index i, counted over directories then files, is on this page
+     */
+    boolean contains(long i) {
+        return !isPaged() || (i >= first() && i < first() + limit);
+    }
+
+    /**
+     * @param rows the number of rows in the whole listing
+     */
+    int pageCount(long rows) {
+        return isPaged() ? (int) Math.max(1, (rows + limit - 1) / limit) : 1;
+    }
+
+    /**
+     * Query string for this view on another page, without the leading '?'.
+     */
+    String query(int page) {
+        StringBuilder query = new StringBuilder();
+        if (sort != null) {
+            query.append("sort=").append(sort.name().toLowerCase()).append('&');
+        }
+        if (descending) {
+            query.append("order=desc&");
+        }
+        if (isPaged()) {
+            query.append("page=").append(page).append("&limit=").append(limit).append('&');
+        }
+        return query.length() > 0 ? query.substring(0, query.length() - 1) : "";
+    }
+
+    /**
+     * Query string for the first page of this view in another order.
+     */
+    String query(SortOrder sort, boolean descending) {
+        return new ListingView(sort, descending, isPaged() ? 1 : 0, limit, false, -1, null).query(1);
+    }
+
+    /**
+     * Identifies the view in cache keys.
+     */
+    String key() {
+        return query(page);
+    }
+}
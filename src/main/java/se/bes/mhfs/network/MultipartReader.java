@@ -0,0 +1,235 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Erik Zivkovic
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package se.bes.mhfs.network;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads a multipart/form-data body part by part as it arrives. Payloads
+ * are scanned for the delimiter with Boyer-Moore-Horspool over one
+ * reusable buffer and handed out without it, so nothing has to be trimmed
+ * afterwards. A delimiter split over two reads is found once the rest of
+ * it has arrived, until then only the bytes that cannot start one are
+ * handed out.
+ */
+class MultipartReader {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final InputStream mIn;
+    private final byte[] mDelimiter; // CRLF--boundary
+    private final int[] mSkip = new int[256];
+    private final byte[] mBuf;
+    private final RequestHeaders mHeaders = new RequestHeaders();
+    private final long mContentLength;
+    private long mRemaining; // body bytes not yet read from mIn
+
+    private int mPos;
+    private int mLimit;
+    private int mSafe; // payload in [mPos, mSafe) holds no delimiter
+    private int mDelim = -1; // where the delimiter ending the payload starts, once found
+    private boolean mEnded;
+
+    /**
+     * @param boundary      as given in the Content-Type of the request
+     * @param contentLength of the body, no more than this is read from in
+     */
+    MultipartReader(InputStream in, String boundary, long contentLength) {
+        mIn = in;
+        mDelimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        mContentLength = contentLength;
+        mRemaining = contentLength;
+        mBuf = new byte[Math.max(BUFFER_SIZE, RequestHeaders.MAX_HEADER_SIZE + 2 * mDelimiter.length)];
+
+        int last = mDelimiter.length - 1;
+        for (int i = 0; i < mSkip.length; i++) {
+            mSkip[i] = mDelimiter.length;
+        }
+        for (int i = 0; i < last; i++) {
+            mSkip[mDelimiter[i] & 0xff] = last - i;
+        }
+
+        // The first delimiter has no CRLF in front of it, pretend it has
+        mBuf[0] = '\r';
+        mBuf[1] = '\n';
+        mLimit = 2;
+    }
+
+    /**
+     * @return the boundary parameter of a multipart Content-Type, or null
+     */
+    static String boundary(String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+        int start = contentType.indexOf("boundary=");
+        if (start < 0) {
+            return null;
+        }
+        String boundary = contentType.substring(start + "boundary=".length());
+        int end = boundary.indexOf(';');
+        if (end >= 0) {
+            boundary = boundary.substring(0, end);
+        }
+        boundary = boundary.trim();
+        if (boundary.length() > 1 && boundary.startsWith("\"") && boundary.endsWith("\"")) {
+            boundary = boundary.substring(1, boundary.length() - 1);
+        }
+        return boundary.isEmpty() ? null : boundary;
+    }
+
+    /**
+     * Skips what is left of the current part, or the preamble, and reads
+     * the head of the next one. The headers are only valid until the
+     * payload is read.
+     *
+     * @return the headers of the next part, or null after the last one
+     */
+    RequestHeaders nextPart() throws IOException {
+        if (mEnded) {
+            return null;
+        }
+        while (payloadAvailable()) {
+            mPos = mSafe;
+        }
+
+        // Past the CRLF, the head starts with --boundary like a request starts with its request line
+        int start = mPos + 2;
+        mPos = start;
+        while (mLimit - start < mDelimiter.length) {
+            fillOrFail();
+            start = mPos;
+        }
+        int afterBoundary = start + mDelimiter.length - 2;
+        if (mBuf[afterBoundary] == '-' && mBuf[afterBoundary + 1] == '-') {
+            mEnded = true;
+            return null;
+        }
+
+        int from = afterBoundary;
+        int end;
+        while ((end = RequestHeaders.findEnd(mBuf, start, from, mLimit)) < 0) {
+            if (mPos == 0 && mLimit == mBuf.length) {
+                throw new RequestHeaders.TooLargeException("Part head larger than " + mBuf.length + " bytes");
+            }
+            int scanned = mLimit - start;
+            fillOrFail();
+            start = mPos;
+            from = start + scanned;
+        }
+        mHeaders.parse(mBuf, start, end);
+        mPos = end;
+        mSafe = end;
+        mDelim = -1;
+        return mHeaders;
+    }
+
+    /**
+     * Reads payload of the current part.
+     *
+     * @return the number of bytes read, or -1 at the end of the part
+     */
+    int read(byte[] b, int off, int len) throws IOException {
+        if (mEnded || !payloadAvailable()) {
+            return -1;
+        }
+        int n = Math.min(len, mSafe - mPos);
+        System.arraycopy(mBuf, mPos, b, off, n);
+        mPos += n;
+        return n;
+    }
+
+    /**
+     * @return the number of bytes of the body read so far
+     */
+    long getBytesRead() {
+        return mContentLength - mRemaining;
+    }
+
+    /**
+     * Makes sure there is payload in [mPos, mSafe), reading more if needed.
+     *
+     * @return false if the part ends at mPos
+     */
+    private boolean payloadAvailable() throws IOException {
+        while (mPos == mSafe) {
+            if (mDelim == mPos) {
+                return false;
+            }
+            int found = indexOfDelimiter(mPos, mLimit);
+            if (found >= 0) {
+                mDelim = found;
+                mSafe = found;
+            } else {
+                // A delimiter could still start in the last bytes, hold them back until more arrive
+                mSafe = Math.max(mPos, mLimit - (mDelimiter.length - 1));
+                if (mSafe == mPos) {
+                    fillOrFail();
+                }
+            }
+        }
+        return true;
+    }
+
+    private int indexOfDelimiter(int from, int to) {
+        int last = mDelimiter.length - 1;
+        int i = from;
+        while (i + last < to) {
+            int j = last;
+            while (mBuf[i + j] == mDelimiter[j]) {
+                if (j == 0) {
+                    return i;
+                }
+                j--;
+            }
+            i += mSkip[mBuf[i + last] & 0xff];
+        }
+        return -1;
+    }
+
+    /**
+     * Moves the unread bytes to the front of the buffer and reads more after them.
+     */
+    private void fillOrFail() throws IOException {
+        if (mPos > 0) {
+            System.arraycopy(mBuf, mPos, mBuf, 0, mLimit - mPos);
+            mLimit -= mPos;
+            mSafe -= mPos;
+            if (mDelim >= 0) {
+                mDelim -= mPos;
+            }
+            mPos = 0;
+        }
+        int read = mRemaining > 0 && mLimit < mBuf.length
+                ? mIn.read(mBuf, mLimit, (int) Math.min(mBuf.length - mLimit, mRemaining)) : -1;
+        if (read <= 0) {
+            throw new EOFException("Multipart body ended before its closing boundary");
+        }
+        mLimit += read;
+        mRemaining -= read;
+    }
+}
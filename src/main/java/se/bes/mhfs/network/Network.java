@@ -28,39 +28,73 @@ import se.bes.mhfs.logger.MHFSLogger;
 import se.bes.mhfs.manager.HFSMonitor;
 
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
 
 public class Network extends Thread{
-    private ServerSocket ss;
-    private MHFSLogger label;
-    private HFSMonitor monitor;
+
+    public enum Engine {
+        BLOCKING,
+        SELECTOR,
+    }
+
+    private volatile ServerSocketChannel ss;
+    protected final MHFSLogger label;
+    protected final HFSMonitor monitor;
     
     public Network(MHFSLogger label, HFSMonitor monitor){
         this.label = label;
         this.monitor = monitor;
     }
+
+    /**
+     * Creates the server engine chosen in the settings.
+     */
+    public static Network create(MHFSLogger label, HFSMonitor monitor) {
+        if (monitor.getInMemory().engine == Engine.SELECTOR) {
+            return new SelectorNetwork(label, monitor);
+        }
+        return new Network(label, monitor);
+    }
     
     public void stopNet(){
         try {
             if(ss != null)
                 ss.close();
         } catch (IOException e) {
-            e.printStackTrace();
+            logException(e);
         }
     }
     
     public void run(){
+        ConnectionExecutor executor = ConnectionExecutor.create(monitor.getInMemory(), label);
+        new UploadStaging(monitor.getInMemory().uploadDir).expireOld();
+        monitor.setConnectionExecutor(executor);
         try {
-            ss = new ServerSocket(monitor.getInMemory().port);
+            // A blocking channel gives sockets that NetworkInstance can use for zero-copy transfers
+            ss = ServerSocketChannel.open();
+            ss.socket().bind(new InetSocketAddress(monitor.getInMemory().port));
             monitor.setNetwork(true);
-            while (true) {
-                monitor.addNetworkInstance(new NetworkInstance(ss.accept(), label));
-            }
+            serve(ss, executor);
         } catch (Exception e) {
-            e.printStackTrace();
-            monitor.getLogger().append(String.format("Network Exception: %s: %s", e.getClass().getName(), e.getMessage()));
+            logException(e);
         } finally {
+            executor.shutdown();
             monitor.setNetwork(false);
         }
     }
+
+    /**
+     * Accepts connections and serves them until server is closed. Each
+     * connection gets a NetworkInstance of its own on the executor.
+     */
+    protected void serve(ServerSocketChannel server, ConnectionExecutor executor) throws IOException {
+        while (true) {
+            monitor.addNetworkInstance(new NetworkInstance(server.accept().socket(), label));
+        }
+    }
+
+    protected void logException(Exception e) {
+        label.append(String.format("Network Exception: %s: %s\n", e.getClass().getName(), e.getMessage()));
+    }
 }
@@ -24,7 +24,7 @@
 
 package se.bes.mhfs.network;
 
-import se.bes.mhfs.filesystem.CustomDirList;
+import se.bes.mhfs.filesystem.DirEntry;
 import se.bes.mhfs.filesystem.FSList;
 import se.bes.mhfs.logger.MHFSLogger;
 import se.bes.mhfs.manager.HFSMonitor;
@@ -38,36 +38,100 @@ import java.awt.event.MouseListener;
 import java.io.*;
 import java.net.Socket;
 import java.net.SocketException;
-import java.net.URL;
-import java.net.URLDecoder;
-import java.nio.charset.Charset;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.InvalidPathException;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Hashtable;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
-public class NetworkInstance extends Thread implements MouseListener, ActionListener {
+public class NetworkInstance implements Runnable, MouseListener, ActionListener {
 
     private static final String POST = "POST";
+    private static final String PUT = "PUT";
+    private static final String HEAD = "HEAD";
+    private static final String HTTP_1_1 = "HTTP/1.1";
+    private static final int KEEP_ALIVE_TIMEOUT_SECONDS = 5;
+    // How long an idle connection keeps its worker while other connections are queued for one
+    private static final int BUSY_KEEP_ALIVE_TIMEOUT_MILLIS = 250;
+    // Longest silence from the client in the middle of a request
+    private static final int TRANSFER_TIMEOUT_SECONDS = 60;
+    private static final int KEEP_ALIVE_MAX_REQUESTS = 100;
+    private static final int UNTHROTTLED_CHUNK_SIZE = 1024 * 1024;
+    private static final int UPLOAD_CHUNK_SIZE = 64 * 1024;
+    private static final int MAX_PENDING_WRITERS = 2; // files of one upload being written at once
+    private static final int PUT_BUFFER_SIZE = 256 * 1024;
+
+    private static final String NL = System.lineSeparator();
+    static final String HTML_BODY_BEGIN =
+            "<html><head><title>HFS/minimal</title><style type=\"text/css\">" + NL
+            + "<!--" + NL
+            + ".headline { font-size: 16px; color: black; line-height: normal; font-style: normal; font-family: Arial; font-variant: normal; font-weight: bold;}" + NL
+            + ".bread { font-size: 12px; color: black; line-height: normal; font-style: normal; font-family: Arial; font-variant: normal;}" + NL
+            + "-->" + NL
+            + "</style></head><body>" + NL
+            + "<p class=\"headline\">HFS/Minimal</p>" + NL
+            + "<form action=\"/\" method=\"post\" enctype=\"multipart/form-data\"><input name=\"zipfile\" type=\"file\" /><br /><input type=\"submit\" name=\"submit\" value=\"Submit File\"></form>" + NL
+            + "<p class=\"bread\">" + NL;
+    static final String HTML_END = "</p>" + "</body></html>" + NL;
+    static final byte[] NOT_FOUND_PAGE = (HTML_BODY_BEGIN
+            + "File not found.<br/><a href=\"/\">Back to file listing.</a>" + NL
+            + HTML_END).getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * The built-in favicon, read once. Its resource URL is not a file when
+     * running from a jar, so it is served from memory.
+     */
+    static final byte[] FAVICON = readResource("favicon.ico");
+    static final String FAVICON_ETAG = FAVICON != null
+            ? "\"" + Integer.toHexString(Arrays.hashCode(FAVICON)) + "-" + Integer.toHexString(FAVICON.length) + "\""
+            : null;
 
     private Socket mSocket;
-    private BufferedInputStream mIn;
+    private RequestStream mIn;
 
     private OutputStream mOut;
     private PrintStream mOutP;
+    private ResponseWriter mWriter;
     private MHFSLogger mLogArea;
     private final JProgressBar mProgress = new JProgressBar(0, 100);
     private JLabel mLabel = new JLabel("Nothing");
     private JPopupMenu mPopupMenu = new JPopupMenu();
     private JMenuItem mItem;
     private HFSMonitor mMonitor;
-    private HashMap<String, String> mRequests;
+    private RequestHeaders mRequests;
+    private boolean mHttp11;
+    private boolean mKeepAlive;
+    private boolean mHeadRequest;
+    private ListingView mView;
 
-    private boolean running = true;
+    private volatile boolean running = true;
+    private Thread mWorker;
 
     public NetworkInstance(Socket s, MHFSLogger logArea) {
+        this(s, logArea, new byte[0]);
+    }
+
+    /**
+     * @param prefetched bytes already read from the socket, e.g. by the
+     *                   selector engine before handing the connection over
+     */
+    NetworkInstance(Socket s, MHFSLogger logArea, byte[] prefetched) {
         this.mSocket = s;
         this.mLogArea = logArea;
         try {
-            mIn = new BufferedInputStream(s.getInputStream());
+            mIn = new RequestStream(s.getInputStream(), prefetched);
             mOut = s.getOutputStream();
             mOutP = new PrintStream(s.getOutputStream());
         } catch (Exception e) {
@@ -94,107 +158,63 @@ public class NetworkInstance extends Thread implements MouseListener, ActionList
     }
 
     /**
-     * Not super effective to read char-by-char, but can't be bothered to do anything better right now
+     * Answers a connection that could not be given a worker and closes it.
      */
-    private String readLine() throws IOException {
-        int i;
-        StringBuilder sb = new StringBuilder();
-        while((i = mIn.read()) != -1) {
-            char c = (char) i;
-            if (c == '\r') {
-                continue;
-            }
-            if (c == '\n') {
-                break;
-            }
-            sb.append(c);
+    public void reject() {
+        mLogArea.append("Connection rejected, all workers are busy. ( "
+                + mSocket.getInetAddress().getHostAddress() + " )\n");
+        try {
+            mOutP.print("HTTP/1.0 503 Service Unavailable\r\n"
+                    + "Retry-After: 1\r\n"
+                    + "Content-Length: 0\r\n\r\n");
+            mOutP.flush();
+            mSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
         }
-        return sb.toString();
     }
 
     @Override
     public void run() {
+        synchronized (this) {
+            mWorker = Thread.currentThread();
+        }
         try {
-
-            String req = readLine();
-            String line;
-
-            // loop through and save request lines
-            mRequests = new HashMap<>();
-            line = req;
-            System.out.println(line);
-
-            line = readLine();// in.readLine();
-            while (line.length() > 0) {
-                String[] splits = line.split(": ");
-                System.out.println(line);
-                if (splits.length == 2) {
-                    mRequests.put(splits[0], splits[1]);
-                } else {
-                    System.err
-                            .println("Error, Request had non \": \" separator");
-                }
-                line = readLine();// in.readLine();
-            }
-
-            String[] strings = req.split(" ");
-            if (strings[0].equalsIgnoreCase(POST)) {
-                NetworkInstance.HTMLBegin(mOutP);
-                if (receiveFile()) {
-                    mOutP.println("File upload success!<br/><a href=\"/\">Back to file listing.</a>");
-                } else {
-                    mOutP.println("File upload failure :/ File probably already exists. (Cannot overwrite)<br/><a href=\"/\">Back to file listing.</a>");
-                }
-                NetworkInstance.HTMLEnd(mOutP);
-            }
-            // GET stuff
-            // GET /
-            else if (strings[1].length() == 0 || strings[1].equals("/")) {
-                if (mMonitor.isCustomList()) {
-                    printCustomDirList(mMonitor.getCustomDirList());
-                } else {
-                    printStandardDirList("");
-                }
-                SwingUtilities.invokeLater(() -> mProgress.setValue(100));
-            }
-            // GET File
-            else {
-                SwingUtilities.invokeLater(() -> mProgress.setValue(0));
-                String[] fname = strings[1].split("/");
-
-                File f;
-                final CustomDirList d = mMonitor.getCustomDirList();
-                if (mMonitor.isCustomList()) {
-                    f = d.lookup(URLDecoder.decode(fname[fname.length - 1],
-                            Charset.defaultCharset().toString()));
-                } else {
-                    f = getFile(strings[1]);
-                }
-
-                if (f == null && strings[1].toLowerCase().endsWith("favicon.ico")) {
-                    ClassLoader classLoader = getClass().getClassLoader();
-                    URL url = classLoader.getResource("favicon.ico");
-                    if (url != null) {
-                        f = new File(url.getFile());
+            int served = 0;
+            boolean keepAlive = true;
+            while (keepAlive && running) {
+                if (served > 0) {
+                    // Only waiting for the next request is held to the keep-alive timeout
+                    mSocket.setSoTimeout(keepAliveTimeoutMillis());
+                    try {
+                        if (mIn.readHead() < 0) {
+                            break;
+                        }
+                    } catch (SocketTimeoutException e) {
+                        // An idle client closing its keep-alive connection is nothing to report
+                        break;
                     }
-                }
-
-                Plugin p = mMonitor.getPluginManager().getPluginByIdentifier(
-                        URLDecoder.decode(fname[fname.length - 1], Charset
-                                .defaultCharset().toString()));
-                System.out.println("Plugin: " + p);
-
-                if (p != null) {
-                    p.runPlugin(mSocket);
-                } else if (f != null) {
-                    sendFile(f); // send raw file
-                } else if (mMonitor.isCustomList()) {
-                    printCustomDirList(d);
+                    mSocket.setSoTimeout(TRANSFER_TIMEOUT_SECONDS * 1000);
                 } else {
-                    printStandardDirList(strings[1]);
+                    mSocket.setSoTimeout(TRANSFER_TIMEOUT_SECONDS * 1000);
+                    if (mIn.readHead() < 0) {
+                        break;
+                    }
                 }
+                served++;
+                keepAlive = handleRequest(served < KEEP_ALIVE_MAX_REQUESTS);
+                mOutP.flush();
             }
-
+        } catch (RequestHeaders.TooLargeException e) {
+            mLogArea.append("Request rejected: " + e.getMessage() + " ( "
+                    + mSocket.getInetAddress().getHostAddress() + " )\n");
+            mOutP.print("HTTP/1.1 431 Request Header Fields Too Large\r\n"
+                    + "Content-Length: 0\r\n"
+                    + "Connection: close\r\n\r\n");
+            mOutP.flush();
+        } catch (SocketTimeoutException e) {
+            mLogArea.append("Connection timed out, nothing arrived for " + TRANSFER_TIMEOUT_SECONDS + " s ( "
+                    + mSocket.getInetAddress().getHostAddress() + " )\n");
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
@@ -206,82 +226,371 @@ public class NetworkInstance extends Thread implements MouseListener, ActionList
         }
         System.out.println("CLOSING!");
         running = false;
+        synchronized (this) {
+            mWorker = null;
+        }
         mMonitor.removeNetworkInstance(this);
     }
 
-    public JLabel getNameLabel() {
-        return mLabel;
+    /**
+     * @param mayKeepAlive false if this is the last request allowed on the connection
+     * @return true if the connection can be reused for another request
+     */
+    private boolean handleRequest(boolean mayKeepAlive) throws Exception {
+        mRequests = mIn.getHeaders();
+        String req = mRequests.getRequestLine();
+        System.out.println(req);
+
+        String[] strings = req.split(" ");
+        mHttp11 = strings.length > 2 && strings[2].equalsIgnoreCase(HTTP_1_1);
+        mKeepAlive = mayKeepAlive && wantsKeepAlive();
+        mHeadRequest = strings[0].equalsIgnoreCase(HEAD);
+        mWriter = new ResponseWriter(mOut, mHttp11);
+
+        Map<String, String> query = new HashMap<>();
+        String path = strings.length > 1 ? ListingView.splitTarget(strings[1], query) : "";
+        mView = ListingView.from(query, mRequests.get("Accept"));
+
+        if (strings[0].equalsIgnoreCase(PUT)) {
+            return receivePut(path) && mKeepAlive;
+        }
+        if (strings[0].equalsIgnoreCase(POST)) {
+            // The body is not always read to the end, so never reuse the connection
+            mKeepAlive = false;
+            sendContinue();
+            boolean received = receiveFile();
+            mWriter.begin(HTTP_1_1 + " 200 OK", "Content-Type: " + guessContentType(".html") + "\r\n"
+                    + "Cache-Control: no-cache\r\n"
+                    + connectionHeader());
+            PrintStream page = mWriter.printer();
+            NetworkInstance.HTMLBodyBegin(page);
+            if (received) {
+                page.println("File upload success!<br/><a href=\"/\">Back to file listing.</a>");
+            } else {
+                page.println("File upload failure :/ File probably already exists. (Cannot overwrite)<br/><a href=\"/\">Back to file listing.</a>");
+            }
+            NetworkInstance.HTMLEnd(page);
+            mWriter.finish();
+            return false;
+        }
+        // GET stuff
+        // GET /
+        else if (path.length() == 0 || path.equals("/")) {
+            if (mMonitor.isCustomList()) {
+                printCustomDirList();
+            } else {
+                printStandardDirList("");
+            }
+            SwingUtilities.invokeLater(() -> mProgress.setValue(100));
+            return mKeepAlive;
+        }
+        // GET File
+        else {
+            SwingUtilities.invokeLater(() -> mProgress.setValue(0));
+            File f = resolveFile(mMonitor, path);
+
+            Plugin p = mMonitor.getPluginManager().getPluginByIdentifier(mMonitor.getFSList().fileName(path));
+            System.out.println("Plugin: " + p);
+
+            if (p != null) {
+                // Plugins write unframed responses straight to the socket
+                p.runPlugin(mSocket);
+                return false;
+            } else if (f != null) {
+                return sendFile(f) && mKeepAlive; // send raw file
+            } else if (isFavicon(path)) {
+                sendFavicon();
+            } else if (mMonitor.isCustomList()) {
+                printCustomDirList();
+            } else {
+                printStandardDirList(path);
+            }
+            return mKeepAlive;
+        }
     }
 
-    /*
-     * append has appended \\ already
+    /**
+     * Idle keep-alive connections hold a worker from the bounded pool. When
+     * other connections are queued for one, an idle connection only waits
+     * long enough for a request the client was about to send.
      */
-    private void printCustomDirList(CustomDirList customDirList) {
-        mLogArea.append("File List Sent. ( "
-                + mSocket.getInetAddress().getHostAddress() + " )\n");
-        NetworkInstance.HTMLBegin(mOutP);
-        mOutP.println("<table><tr>");
+    private int keepAliveTimeoutMillis() {
+        return mMonitor.getQueueDepth() > 0 ? BUSY_KEEP_ALIVE_TIMEOUT_MILLIS : KEEP_ALIVE_TIMEOUT_SECONDS * 1000;
+    }
 
-        String[] files = customDirList.getDirStrings();
+    /**
+     * HTTP/1.1 connections are persistent unless the client asks otherwise,
+     * HTTP/1.0 clients have to ask for it.
+     */
+    private boolean wantsKeepAlive() {
+        String connection = mRequests.get("Connection");
+        if (mHttp11) {
+            return connection == null || !connection.equalsIgnoreCase("close");
+        }
+        return connection != null && connection.equalsIgnoreCase("keep-alive");
+    }
 
-        for (String s : files) {
-            mOutP.println(String
-                    .format("<td align=\"right\" class=\"bread\">[ %1$.2f kB ] </td><td class=\"bread\"><a href=\"/%2$s\">%2$s</a></td><tr>",
-                            (double) customDirList.lookup(s).length() / 1024d, s));
+    private String connectionHeader() {
+        if (mKeepAlive) {
+            return "Connection: keep-alive\r\n"
+                    + "Keep-Alive: timeout=" + KEEP_ALIVE_TIMEOUT_SECONDS + ", max=" + KEEP_ALIVE_MAX_REQUESTS + "\r\n";
         }
-        mOutP.println("</tr></table>");
-        NetworkInstance.HTMLEnd(mOutP);
+        return "Connection: close\r\n";
+    }
 
+    /**
+     * @return the encoding negotiated for a listing page, or null
+     */
+    private String pageEncoding() {
+        return Compression.negotiate(mRequests.get("Accept-Encoding"), mMonitor.getInMemory().compressionLevel);
     }
 
-    private File getFile(String place) {
-        FSList fs = mMonitor.getFSList();
-        File[] files = fs.getFiles(place);
-        if (fs.isDir(place))
+    /**
+     * Sends a rendered HTML page with a Content-Length so the connection can be kept alive.
+     *
+     * @param encoding from pageEncoding(), pages below Compression.MIN_SIZE are sent as is anyway
+     */
+    private void sendPage(PageCache.Page page, String etag, String encoding) throws IOException {
+        if (!page.isCompressible()) {
+            encoding = null;
+        }
+        byte[] body = page.body(encoding, mMonitor.getInMemory().compressionLevel);
+        String headers = "Content-Type: " + guessContentType(".html") + "\r\n"
+                + "Cache-Control: no-cache\r\n"
+                + "ETag: " + etag + "\r\n"
+                + "Vary: Accept, Accept-Encoding\r\n"
+                + (encoding != null ? "Content-Encoding: " + encoding + "\r\n" : "")
+                + connectionHeader();
+        sendBytes(HTTP_1_1 + " 200 OK", headers, body);
+    }
+
+    /**
+     * Sends a complete body with a Content-Length, only the head for HEAD requests.
+     */
+    private void sendBytes(String statusLine, String headers, byte[] body) throws IOException {
+        if (mHeadRequest) {
+            mOutP.print(statusLine + "\r\n" + headers + "Content-Length: " + body.length + "\r\n\r\n");
+            mOutP.flush();
+        } else {
+            // Head and body leave in one write
+            mWriter.send(statusLine, headers, body, body.length);
+        }
+    }
+
+    private void sendNotFound() throws IOException {
+        sendBytes(HTTP_1_1 + " 404 Not Found", "Content-Type: " + guessContentType(".html") + "\r\n"
+                + "Cache-Control: no-cache\r\n"
+                + connectionHeader(), NOT_FOUND_PAGE);
+    }
+
+    static boolean isFavicon(String path) {
+        return FAVICON != null && path.toLowerCase().endsWith("favicon.ico");
+    }
+
+    private void sendFavicon() throws IOException {
+        if (Validators.isNotModified(mRequests, FAVICON_ETAG, 0)) {
+            sendNotModified(FAVICON_ETAG, 0);
+            return;
+        }
+        sendBytes(HTTP_1_1 + " 200 OK", "Content-Type: " + guessContentType(".ico") + "\r\n"
+                + "Cache-Control: max-age=86400\r\n"
+                + "ETag: " + FAVICON_ETAG + "\r\n"
+                + connectionHeader(), FAVICON);
+    }
+
+    private static byte[] readResource(String name) {
+        try (InputStream in = NetworkInstance.class.getClassLoader().getResourceAsStream(name)) {
+            if (in == null) {
+                return null;
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                bytes.write(buffer, 0, n);
+            }
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            e.printStackTrace();
             return null;
-        if (files != null && files.length > 0)
-            return files[0];
-        return null;
+        }
     }
 
-    private void printStandardDirList(String place) {
-        System.out.println("PLACE: " + place);
-        FSList fs = mMonitor.getFSList();
+    /**
+     * @param lastModified milliseconds, or 0 to leave out Last-Modified
+     */
+    private void sendNotModified(String etag, long lastModified) {
+        mOutP.print(HTTP_1_1 + " 304 Not Modified\r\n"
+                + "ETag: " + etag + "\r\n"
+                + (lastModified > 0 ? "Last-Modified: " + Validators.httpDate(lastModified) + "\r\n" : "")
+                + connectionHeader()
+                + "\r\n");
+        mOutP.flush();
+    }
+
+    public JLabel getNameLabel() {
+        return mLabel;
+    }
+
+    private void printCustomDirList() throws IOException {
+        String plainETag = Validators.customListETag(mMonitor.getInMemory().customFiles);
+        if (mView.json) {
+            String jsonETag = JsonListing.eTag(plainETag);
+            streamJsonList(jsonETag, writer ->
+                    JsonListing.writeCustom(writer, mMonitor.getCustomDirList(), mView, jsonETag));
+            return;
+        }
+        String encoding = pageEncoding();
+        String etag = Compression.variantETag(plainETag, encoding);
+        if (Validators.isNotModified(mRequests, etag, 0)) {
+            sendNotModified(etag, 0);
+            return;
+        }
 
         mLogArea.append("File List Sent. ( "
                 + mSocket.getInetAddress().getHostAddress() + " )\n");
-        NetworkInstance.HTMLBegin(mOutP);
-        mOutP.println("<table><tr>");
+        sendPage(DirListing.customPage(mMonitor, mView, plainETag), etag, encoding);
+    }
 
-        File[] dirs = fs.getDirs(place);
-        File[] files = fs.getFiles(place);
+    /**
+     * Resolves a request path to a shared file, or null if it should be
+     * answered with a listing, a plugin or the built-in favicon.
+     */
+    static File resolveFile(HFSMonitor monitor, String path) {
+        if (monitor.isCustomList()) {
+            return monitor.getCustomDirList().lookup(monitor.getFSList().fileName(path));
+        }
+        return monitor.getFSList().getFile(path);
+    }
 
-        String[] upDirSplit = place.split("/");
-        String upDir = "";
+    private void printStandardDirList(String place) throws IOException {
+        System.out.println("PLACE: " + place);
+        FSList fs = mMonitor.getFSList();
+        if (fs.isLargeDir(place)) {
+            if (mView.json) {
+                streamJsonList(null, writer -> JsonListing.streamStandard(writer, fs, place, mView));
+            } else {
+                streamStandardDirList(place);
+            }
+            return;
+        }
+        DirEntry[] dirs = fs.getDirs(place, mView.sort);
+        DirEntry[] files = fs.getFiles(place, mView.sort);
+        if (dirs == null || files == null) {
+            sendNotFound();
+            return;
+        }
 
-        for (int i = 0; i < upDirSplit.length - 1; i++) {
-            upDir += upDirSplit[i] + "/";
+        String plainETag = Validators.listingETag(dirs, files);
+        if (mView.json) {
+            String jsonETag = JsonListing.eTag(plainETag);
+            streamJsonList(jsonETag, writer -> JsonListing.writeStandard(writer, place, mView, dirs, files, jsonETag));
+            return;
         }
+        String encoding = pageEncoding();
+        String etag = Compression.variantETag(plainETag, encoding);
+        if (Validators.isNotModified(mRequests, etag, 0)) {
+            sendNotModified(etag, 0);
+            return;
+        }
+
+        mLogArea.append("File List Sent. ( "
+                + mSocket.getInetAddress().getHostAddress() + " )\n");
+        sendPage(DirListing.standardPage(mMonitor, place, mView, dirs, files, plainETag), etag, encoding);
+    }
 
-        if (!fs.isBaseDirectory(place))
-            mOutP.println("<td align=\"right\" class=\"bread\">[ dir ] </td>"
-                    + "<td class=\"bread\"><a href=\"" + upDir + "\">.."
-                    + "</a></td><tr>");
+    /**
+     * Streams the listing of a directory too large to cache while it is
+     * read. There is no ETag, it would take a pass over the whole directory.
+     */
+    private void streamStandardDirList(String place) throws IOException {
+        mLogArea.append("File List streaming started. ( "
+                + mSocket.getInetAddress().getHostAddress() + " )\n");
+        streamBody(guessContentType(".html"), null, pageEncoding(),
+                out -> DirListing.streamStandardDirList(out, mMonitor.getFSList(), place, mView));
+    }
 
-        for (File d : dirs) {
-            mOutP.println("<td align=\"right\" class=\"bread\">[ dir ] </td>"
-                    + "<td class=\"bread\"><a href=\"" + place + "/"
-                    + d.getName() + "\">" + d.getName() + "</a></td><tr>");
+    /**
+     * Streams a JSON listing, see {@link JsonListing}.
+     *
+     * @param jsonETag from JsonListing.eTag(), or null if there is none
+     */
+    private void streamJsonList(String jsonETag, JsonBody body) throws IOException {
+        String encoding = pageEncoding();
+        String etag = null;
+        if (jsonETag != null) {
+            etag = Compression.variantETag(jsonETag, encoding);
+            if (Validators.isNotModified(mRequests, etag, 0)) {
+                sendNotModified(etag, 0);
+                return;
+            }
         }
+        streamBody(guessContentType(".json"), etag, encoding, out -> {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8),
+                    ResponseWriter.BUFFER_SIZE);
+            body.write(writer);
+        });
+    }
 
-        for (File s : files) {
-            mOutP.println(String
-                    .format("<td align=\"right\" class=\"bread\">[ %1$.2f kB ] </td><td class=\"bread\"><a href=\"%2$s/%3$s\">%3$s</a></td><tr>",
-                            (double) s.length() / 1024d, place, s.getName()));
+    private interface JsonBody {
+        void write(Writer writer) throws IOException;
+    }
+
+    private interface StreamedBody {
+        void write(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Sends a body whose length is not known up front: HTTP/1.1 clients get
+     * it in chunks and HTTP/1.0 clients until the connection closes.
+     *
+     * @param etag     or null to leave it out
+     * @param encoding from pageEncoding(), or null
+     */
+    private void streamBody(String contentType, String etag, String encoding, StreamedBody body) throws IOException {
+        if (!mHttp11) {
+            mKeepAlive = false;
+        }
+        mOutP.print(HTTP_1_1 + " 200 OK\r\n"
+                + "Content-Type: " + contentType + "\r\n"
+                + "Cache-Control: no-cache\r\n"
+                + (etag != null ? "ETag: " + etag + "\r\n" : "")
+                + "Vary: Accept, Accept-Encoding\r\n"
+                + (encoding != null ? "Content-Encoding: " + encoding + "\r\n" : "")
+                + (mHttp11 ? "Transfer-Encoding: chunked\r\n" : "")
+                + connectionHeader()
+                + "\r\n");
+        mOutP.flush();
+        if (mHeadRequest) {
+            return;
         }
-        mOutP.println("</tr></table>");
-        NetworkInstance.HTMLEnd(mOutP);
 
+        ChunkedOutputStream chunked = null;
+        OutputStream out = mOut;
+        if (mHttp11) {
+            chunked = new ChunkedOutputStream(mOut, ResponseWriter.BUFFER_SIZE);
+            out = chunked;
+        }
+        Compression.Encoder encoder = null;
+        try {
+            if (encoding != null) {
+                encoder = new Compression.Encoder(out, encoding, mMonitor.getInMemory().compressionLevel);
+                out = encoder;
+            }
+            body.write(out);
+            if (encoder != null) {
+                encoder.finishEncoding();
+            }
+            if (chunked != null) {
+                chunked.finishChunks();
+            }
+        } finally {
+            if (encoder != null) {
+                encoder.release();
+            }
+        }
+        mLogArea.append("File List Sent. ( "
+                + mSocket.getInetAddress().getHostAddress() + " )\n");
     }
 
     public static void HTMLBegin(PrintStream outP) {
@@ -289,33 +598,31 @@ public class NetworkInstance extends Thread implements MouseListener, ActionList
                 "HTTP/1.0 200 OK\r\n" + "Content-Type: " + guessContentType(".html") + "\r\n"
                 + "Cache-Control: no-cache"
                 + "\r\n\r\n");
-        outP
-                .println("<html><head><title>HFS/minimal</title><style type=\"text/css\">");
-        outP.println("<!--");
-        outP
-                .println(".headline { font-size: 16px; color: black; line-height: normal; font-style: normal; font-family: Arial; font-variant: normal; font-weight: bold;}");
-        outP
-                .println(".bread { font-size: 12px; color: black; line-height: normal; font-style: normal; font-family: Arial; font-variant: normal;}");
-        outP.println("-->");
-        outP.println("</style></head><body>");
-        outP.println("<p class=\"headline\">HFS/Minimal</p>");
-        outP
-                .println("<form action=\"/\" method=\"post\" enctype=\"multipart/form-data\"><input name=\"zipfile\" type=\"file\" /><br /><input type=\"submit\" name=\"submit\" value=\"Submit File\"></form>");
-        outP.println("<p class=\"bread\">");
+        HTMLBodyBegin(outP);
+    }
+
+    /**
+     * Like {@link #HTMLBegin(PrintStream)} but without the response header,
+     * for pages that are rendered before they are sent.
+     */
+    static void HTMLBodyBegin(PrintStream outP) {
+        outP.print(HTML_BODY_BEGIN);
     }
 
     public static void HTMLEnd(PrintStream outP) {
-        outP
-                .println("</p>"
-                        + "</body></html>");
+        outP.print(HTML_END);
     }
 
-    private static String guessContentType(String path) {
+    static String guessContentType(String path) {
         path = path.toLowerCase();
         if (path.endsWith(".html") || path.endsWith(".htm")) {
             return "text/html";
+        } else if (path.endsWith(".json")) {
+            return "application/json; charset=utf-8";
         } else if (path.endsWith(".txt") || path.endsWith(".java")) {
             return "text/plain";
+        } else if (path.endsWith(".ico")) {
+            return "image/x-icon";
         } else if (path.endsWith(".gif")) {
             return "image/gif";
         } else if (path.endsWith(".jpg") || path.endsWith(".jpeg")) {
@@ -325,184 +632,474 @@ public class NetworkInstance extends Thread implements MouseListener, ActionList
         }
     }
 
-    private boolean receiveFile() throws InterruptedException, IOException {
-        int buffSize;
+    /**
+     * Tells a client that waits with Expect: 100-continue to send the body.
+     */
+    private void sendContinue() {
+        String expect = mRequests.get("Expect");
+        if (mHttp11 && expect != null && expect.equalsIgnoreCase("100-continue")) {
+            mOutP.print(HTTP_1_1 + " 100 Continue\r\n\r\n");
+            mOutP.flush();
+        }
+    }
+
+    private void sendText(String status, String headers, String text) throws IOException {
+        sendBytes(HTTP_1_1 + " " + status, headers + "Content-Type: text/plain; charset=utf-8\r\n"
+                + connectionHeader(), (text + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Saves the body of a PUT, like curl -T sends, as a file in the upload
+     * directory named by the last segment of path. There is no multipart
+     * framing to parse, the body is copied to the file as it arrives. It is
+     * read through the request stream rather than the socket's channel, so
+     * a client that stops sending runs into the socket timeout; that costs
+     * the zero-copy path, the bytes pass through a heap buffer.
+     * <p>
+     * Uploads are resumable: the body goes to an {@link UploadStaging} file
+     * first, and a PUT with Content-Range: bytes &#42;/total asks how much of
+     * it is there. A client that lost its connection sends the rest with
+     * Content-Range: bytes offset-end/total.
+     *
+     * @return true if the whole body was read, so the connection can be reused
+     */
+    private boolean receivePut(String path) throws IOException, InterruptedException {
+        final String host = mSocket.getInetAddress().getHostAddress();
+        String length = mRequests.get("Content-Length");
+        long contentLength;
         try {
-            buffSize = mSocket.getReceiveBufferSize();
-        } catch (SocketException e) {
-            e.printStackTrace();
+            contentLength = length != null ? Long.parseLong(length.trim()) : -1;
+        } catch (NumberFormatException e) {
+            contentLength = -1;
+        }
+        if (contentLength < 0) {
+            // Without a length there is no telling where the body ends
+            mKeepAlive = false;
+            sendText("411 Length Required", "", "A PUT needs a Content-Length.");
             return false;
         }
 
+        String filename = mMonitor.getFSList().fileName(path);
+        UploadStaging staging = new UploadStaging(mMonitor.getInMemory().uploadDir);
+        if (filename.isEmpty() || filename.equals(".") || filename.equals("..")
+                || filename.contains(File.separator) || !isValidPath(staging.target(filename))) {
+            mKeepAlive = false;
+            sendText("400 Bad Request", "", "Not a file name: " + filename);
+            return false;
+        }
+
+        String contentRange = mRequests.get("Content-Range");
+        // A plain PUT is one chunk with everything in it
+        UploadStaging.Chunk chunk = contentRange != null
+                ? UploadStaging.Chunk.parse(contentRange)
+                : new UploadStaging.Chunk(0, contentLength - 1, contentLength);
+        if (chunk == null || (!chunk.query && chunk.length() != contentLength)) {
+            mKeepAlive = false;
+            sendText("400 Bad Request", "", "Content-Range " + contentRange
+                    + " needs a total and must match the Content-Length.");
+            return false;
+        }
+
+        File outF = staging.target(filename);
+        if (outF.exists()) {
+            mLogArea.append("File receiving aborted: " + filename + " already exists ( " + host + " )\n");
+            updateLabel(String.format("[R] File exists, %s / %.2f kB", filename, chunk.total / 1024d));
+            mKeepAlive = false;
+            sendText("409 Conflict", "", filename + " already exists, it is not overwritten.");
+            return false;
+        }
+
+        long offset = staging.offset(filename, chunk.total);
+        if (chunk.query) {
+            mKeepAlive &= contentLength == 0;
+            sendResumeIncomplete(filename, offset, chunk.total);
+            return contentLength == 0;
+        }
+
+        FileChannel file;
+        try {
+            file = staging.open(filename, chunk.total, chunk.start);
+        } catch (UploadStaging.AheadException e) {
+            // The client has to go back to what arrived
+            mKeepAlive = false;
+            sendText("416 Range Not Satisfiable", receivedRange(e.received), e.getMessage());
+            return false;
+        } catch (UploadStaging.BusyException e) {
+            mKeepAlive = false;
+            sendText("409 Conflict", "", e.getMessage());
+            return false;
+        }
+
+        updateLabel("[R]" + filename + " ( " + host + " )");
+        mLogArea.append("File receiving started: " + filename + "( " + host + " )"
+                + (chunk.start > 0 || chunk.end + 1 < chunk.total
+                ? " bytes " + chunk.start + "-" + chunk.end + " of " + chunk.total : "") + "\n");
+        sendContinue();
+
+        boolean complete = false;
+        FairShaper.Client shaper = mMonitor.getUploadShaper().open(mSocket.getInetAddress(),
+                mMonitor.getFSList().sharedPath(outF.toPath()), chunk.total);
+        try (FileChannel out = file) {
+            complete = receiveBody(out, shaper, contentLength);
+            offset = out.size();
+        } finally {
+            shaper.close();
+        }
+
+        if (!complete) {
+            // What arrived stays in the staging area, the client can resume from there
+            mLogArea.append("File receiving interrupted: " + filename + " at " + offset + " of "
+                    + chunk.total + " bytes ( " + host + " )\n");
+            return false;
+        }
+        if (offset < chunk.total) {
+            sendResumeIncomplete(filename, offset, chunk.total);
+            return true;
+        }
+
+        try {
+            staging.complete(filename, chunk.total);
+        } catch (FileAlreadyExistsException e) {
+            mLogArea.append("File receiving aborted: " + filename + " already exists ( " + host + " )\n");
+            sendText("409 Conflict", "", filename + " already exists, it is not overwritten.");
+            return true;
+        }
+        mLogArea.append("File receiving finished: " + filename + "( " + host + " )\n");
+        sendText("201 Created", "", "Saved " + filename);
+        return true;
+    }
+
+    /**
+     * Tells the client how much of a resumable upload has arrived, so it
+     * knows where to go on from.
+     */
+    private void sendResumeIncomplete(String filename, long offset, long total) throws IOException {
+        sendText("308 Resume Incomplete", receivedRange(offset),
+                "Received " + offset + " of " + total + " bytes of " + filename);
+    }
+
+    private static boolean isValidPath(File f) {
+        try {
+            f.toPath();
+            return true;
+        } catch (InvalidPathException e) {
+            return false;
+        }
+    }
+
+    private static String receivedRange(long offset) {
+        return offset > 0 ? "Range: bytes=0-" + (offset - 1) + "\r\n" : "";
+    }
+
+    /**
+     * Moves contentLength bytes of body into out.
+     *
+     * @return true if all of them arrived
+     */
+    private boolean receiveBody(FileChannel out, FairShaper.Client shaper, long contentLength)
+            throws IOException, InterruptedException {
+        long countFactor = getProgressBarFactor(contentLength);
+        long max = contentLength / countFactor;
+        SwingUtilities.invokeLater(() -> {
+            mProgress.setMaximum((int) max);
+            mProgress.setValue(0);
+        });
+
+        long remaining = contentLength;
+
+        // Read through mIn: it returns the body bytes that arrived with the head first, and
+        // unlike the socket's channel it gives up after the socket timeout when the client stalls
+        byte[] buffer = new byte[PUT_BUFFER_SIZE];
+        ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+        while (remaining > 0 && running) {
+            int read = mIn.read(buffer, 0, (int) Math.min(shaper.chunkSize(buffer.length), remaining));
+            if (read < 0) {
+                return false;
+            }
+            wrapped.clear().limit(read);
+            while (wrapped.hasRemaining()) {
+                out.write(wrapped);
+            }
+            remaining -= read;
+
+            final long received = contentLength - remaining;
+            SwingUtilities.invokeLater(() -> mProgress.setValue((int) (received / countFactor)));
+            shaper.consume(read);
+        }
+        return remaining == 0;
+    }
+
+    /**
+     * Saves every file part of a multipart upload. Each file is written by
+     * a {@link PartWriter} of its own while this keeps reading the body.
+     *
+     * @return true if all files were saved
+     */
+    private boolean receiveFile() throws InterruptedException, IOException {
         SwingUtilities.invokeLater(() -> mProgress.setValue(0));
 
-        // get the boundary
-        String boundary = mRequests.get("Content-Type").split("boundary=")[1];
-        long contentLength = Long.parseLong(mRequests.get("Content-Length"));
+        String boundary = MultipartReader.boundary(mRequests.get("Content-Type"));
+        String length = mRequests.get("Content-Length");
+        if (boundary == null || length == null) {
+            mLogArea.append("File receiving aborted: not a multipart/form-data upload ( "
+                    + mSocket.getInetAddress().getHostAddress() + " )\n");
+            return false;
+        }
+        long contentLength = Long.parseLong(length.trim());
 
         long countFactor = getProgressBarFactor(contentLength);
         long max = contentLength / countFactor;
 
         SwingUtilities.invokeLater(() -> mProgress.setMaximum((int) max));
 
-        String preBound = "--" + boundary;
-        // String postBound = "--" + boundary + "--";
-
-        long contentLengthLeft = contentLength;
-        // lets do this!
-        String line = readLine();// in.readLine();
-        contentLengthLeft -= line.length() + 4;
-        while (line.equals(preBound)) {
-            Hashtable<String, String> info = new Hashtable<String, String>();
-            line = readLine();// in.readLine();
-            contentLengthLeft -= line.length() + 4;
-            while (line.length() > 0) {
-                System.out.println("line: " + line);
-                String[] splits = line.split(": ");
-                if (splits.length == 2) {
-                    info.put(splits[0], splits[1]);
-                } else {
-                    System.err.println("Error, Request had non \": \" separator");
+        final String host = mSocket.getInetAddress().getHostAddress();
+        MultipartReader multipart = new MultipartReader(mIn, boundary, contentLength);
+        // Writers that have been closed but may still be writing, oldest first
+        LinkedList<PartWriter> writers = new LinkedList<>();
+        // Names taken by earlier parts, whose files the writers may not have created yet
+        Set<String> taken = new HashSet<>();
+        boolean saved = true;
+        try {
+            RequestHeaders info;
+            while (running && (info = multipart.nextPart()) != null) {
+                String filename = partFileName(info);
+                if (filename == null) {
+                    // A form field, or a file input that was left empty
+                    continue;
                 }
-                line = readLine();// in.readLine();
-                contentLengthLeft -= line.length() + 4;
-            }
-
-            String contentDisposition = info.get("Content-Disposition");
-            if (contentDisposition != null) {
-                String[] split = contentDisposition.split("filename=");
-                String filename = "";
-                if (split.length == 2) {
-                    final File fakeFile = new File(split[1].replaceAll("\"", ""));
-                    filename = fakeFile.getName();
-
-                    if (filename.contains(File.separator)) {
-                        mLogArea.append("File receiving aborted: " + filename
-                                + " is not allowed, it contains file system separator characters ( "
-                                + mSocket.getInetAddress().getHostAddress() + " )\n");
-                        updateLabel(String.format("[R] File not allowed, %s / %.2f kB", filename, contentLength / 1024d));
-                        return false;
-                    }
 
-                    File outF = new File(mMonitor.getInMemory().uploadDir + File.separator
-                            + filename);
-                    if (outF.exists()) {
-                        mLogArea.append("File receiving aborted: " + filename
-                                + " already exists ( "
-                                + mSocket.getInetAddress().getHostAddress() + " )\n");
-                        updateLabel(String.format("[R] File exists, %s / %.2f kB", filename, contentLength / 1024d));
-                        return false;
-                    }
-                    OutputStream outSF = new FileOutputStream(outF);
-
-                    updateLabel("[R]" + filename + " ( "
-                            + mSocket.getInetAddress().getHostAddress() + " )");
-                    mLogArea.append("File receiving started: " + filename + "( "
-                            + mSocket.getInetAddress().getHostAddress() + " )\n");
-
-                    byte[] buffer = new byte[buffSize];
-                    long timeNanos = System.nanoTime() - 1000000000;
-                    long lastSize = 0;
-
-                    double tooMuch = 0;
-                    while (contentLengthLeft > 0 && running) {
-
-                        long nanosBefore = System.nanoTime();
-                        int readBytes = mIn.read(buffer);
-
-                        outSF.write(buffer, 0, readBytes);
-
-                        contentLengthLeft -= readBytes;
-                        final long fContentLengthLeft = contentLengthLeft;
-                        SwingUtilities.invokeLater(() -> mProgress.setValue((int) ((contentLength - fContentLengthLeft) / countFactor)));
-
-                        final long timeDiffNanos = nanosBefore - timeNanos;
-                        if (timeDiffNanos > 1000000000L) {
-                            double dBw = ((double) ((contentLength - contentLengthLeft) - lastSize)) /
-                                    (1000L * (timeDiffNanos / 1000000000L));
-                            SwingUtilities.invokeLater(() -> mProgress.setString(String.format("%.2f%% / %.2f kB/s",
-                                    ((double) (contentLength - fContentLengthLeft) / (double) contentLength) *
-                                            100, dBw)));
-                            timeNanos = System.nanoTime();
-                            lastSize = (contentLength - contentLengthLeft);
-                        }
+                if (filename.contains(File.separator)) {
+                    mLogArea.append("File receiving aborted: " + filename
+                            + " is not allowed, it contains file system separator characters ( " + host + " )\n");
+                    updateLabel(String.format("[R] File not allowed, %s / %.2f kB", filename, contentLength / 1024d));
+                    saved = false;
+                    continue;
+                }
 
-                        long nanosAfter = System.nanoTime();
+                File outF = new File(mMonitor.getInMemory().uploadDir + File.separator
+                        + filename);
+                if (!taken.add(filename) || outF.exists()) {
+                    mLogArea.append("File receiving aborted: " + filename + " already exists ( " + host + " )\n");
+                    updateLabel(String.format("[R] File exists, %s / %.2f kB", filename, contentLength / 1024d));
+                    saved = false;
+                    continue;
+                }
 
-                        // current share
-                        double currShare = mMonitor.getShare() * 0.000000001; // kB/ns
-                        tooMuch = bandWidthLimit(tooMuch, currShare, nanosAfter - nanosBefore,
-                                calcBandwidthUsed(nanosAfter - nanosBefore,
-                                        buffSize));
-                    }
-                    outSF.close();
+                updateLabel("[R]" + filename + " ( " + host + " )");
+                mLogArea.append("File receiving started: " + filename + "( " + host + " )\n");
 
-                    if (!running)
-                        return false;
+                // With a slow disk the reader waits here, instead of queued files piling up in memory
+                while (writers.size() >= MAX_PENDING_WRITERS) {
+                    saved &= finishWriter(writers.removeFirst(), host);
+                }
+                PartWriter writer = PartWriter.start(outF, new FileUpload(filename, host), mMonitor, UPLOAD_CHUNK_SIZE);
+                writers.add(writer);
+                boolean complete = false;
+                FairShaper.Client shaper = mMonitor.getUploadShaper().open(mSocket.getInetAddress(),
+                        mMonitor.getFSList().sharedPath(outF.toPath()), contentLength);
+                try {
+                    complete = receivePart(multipart, writer, shaper, contentLength, countFactor);
+                } finally {
+                    shaper.close();
+                    writer.close(complete);
+                }
+            }
+        } finally {
+            for (PartWriter writer : writers) {
+                saved &= finishWriter(writer, host);
+            }
+        }
+        return saved && running;
+    }
 
-                    RandomAccessFile raf = new RandomAccessFile(outF, "rw");
-                    if (raf.length() > 1024) {
-                        raf.seek(raf.length() - 1024);
-                    }
+    /**
+     * Waits for a closed writer and logs how it went.
+     *
+     * @return true if its file was saved
+     */
+    private boolean finishWriter(PartWriter writer, String host) {
+        String filename = writer.getFile().getName();
+        if (writer.await()) {
+            mLogArea.append("File receiving finished: " + filename + "( " + host + " )\n");
+            return true;
+        }
+        IOException error = writer.getError();
+        mLogArea.append("File receiving failed: " + filename + (error != null ? ": " + error.getMessage() : "")
+                + "( " + host + " )\n");
+        return false;
+    }
 
-                    long removeBytes = 0;
-                    // Ugly
-                    while (!raf.readLine().equals(preBound)) {
-                        // Do nothing
-                    }
-                    removeBytes = preBound.length() + 4;
-                    try {
-                        while (true) {
-                            raf.readByte();
-                            removeBytes++;
-                        }
-                    } catch (EOFException eofe) {
-                        raf.setLength(raf.length() - removeBytes);
-                        raf.close();
-                    }
+    /**
+     * @return the file name of a part, without any directories, or null if it is not a file
+     */
+    private static String partFileName(RequestHeaders info) {
+        String contentDisposition = info.get("Content-Disposition");
+        if (contentDisposition == null) {
+            return null;
+        }
+        String[] split = contentDisposition.split("filename=");
+        if (split.length != 2) {
+            return null;
+        }
+        final File fakeFile = new File(split[1].replaceAll("\"", ""));
+        String filename = fakeFile.getName();
+        return filename.isEmpty() ? null : filename;
+    }
 
-                    mLogArea.append("File receiving finished: " + filename
-                            + "( " + mSocket.getInetAddress().getHostAddress()
-                            + " )\n");
-                    return true;
+    /**
+     * Hands the payload of the current part to writer as it arrives. If
+     * the writer fails, the rest of the part is still read, so the parts
+     * after it can be saved.
+     *
+     * @return true if the whole part was read and handed over
+     */
+    private boolean receivePart(MultipartReader multipart, PartWriter writer, FairShaper.Client shaper,
+                                long contentLength, long countFactor) throws IOException, InterruptedException {
+        long timeNanos = System.nanoTime() - 1000000000;
+        long lastSize = multipart.getBytesRead();
+        ByteBuffer buffer = null;
+        boolean failed = false;
+        while (running) {
+            if (!failed) {
+                buffer = writer.buffer();
+            }
+            int read = multipart.read(buffer.array(), 0, shaper.chunkSize(buffer.capacity()));
+            if (read < 0) {
+                return !failed;
+            }
+            if (!failed) {
+                buffer.limit(read);
+                try {
+                    writer.write(buffer);
+                } catch (IOException e) {
+                    // Only this file is lost, the rest of it is read past so the other parts still arrive
+                    failed = true;
                 }
             }
-            line = readLine();
+
+            long nanosBefore = System.nanoTime();
+            final long received = multipart.getBytesRead();
+            SwingUtilities.invokeLater(() -> mProgress.setValue((int) (received / countFactor)));
+
+            final long timeDiffNanos = nanosBefore - timeNanos;
+            if (timeDiffNanos > 1000000000L) {
+                double dBw = ((double) (received - lastSize)) /
+                        (1000L * (timeDiffNanos / 1000000000L));
+                SwingUtilities.invokeLater(() -> mProgress.setString(String.format("%.2f%% / %.2f kB/s",
+                        ((double) received / (double) contentLength) * 100, dBw)));
+                timeNanos = System.nanoTime();
+                lastSize = received;
+            }
+
+            shaper.consume(read);
         }
-        return true;
+        return false;
     }
 
-    private void sendFile(File f) throws InterruptedException {
+    /**
+     * Sends the file, or the byte ranges of it that the client asked for.
+     *
+     * @return true if the whole response was sent
+     */
+    private boolean sendFile(File f) throws InterruptedException {
         final int buffSize;
         try {
             buffSize = mSocket.getSendBufferSize();
         } catch (SocketException e) {
             e.printStackTrace();
-            return;
+            return false;
         }
 
-        long contentLength = f.length();
+        // Byte ranges always refer to the plain file
+        final Compression.Sidecar sidecar = mRequests.get("Range") == null
+                ? Compression.findSidecar(f, mRequests.get("Accept-Encoding")) : null;
+        final File source = sidecar != null ? sidecar.file : f;
+
+        final long fileLength = source.length();
+        final long lastModified = f.lastModified();
+        final String contentType = guessContentType(f.toString());
+        final String encoding = sidecar != null ? null : Compression.forFile(mRequests, contentType, fileLength,
+                mMonitor.getInMemory().compressionLevel);
+        final String etag = sidecar != null
+                ? Compression.variantETag(Validators.fileETag(sidecar.file), sidecar.encoding)
+                : Compression.variantETag(Validators.fileETag(f), encoding);
+
+        if (Validators.isNotModified(mRequests, etag, lastModified)) {
+            sendNotModified(etag, lastModified);
+            return true;
+        }
+        if (encoding != null) {
+            return sendEncodedFile(f, encoding, etag, buffSize);
+        }
 
-        long countFactor = getProgressBarFactor(contentLength);
-        long max = contentLength / countFactor;
+        List<ByteRange> ranges = Validators.ifRangeMatches(mRequests, etag, lastModified)
+                ? ByteRange.parse(mRequests.get("Range"), fileLength) : null;
+        if (ranges != null && ranges.isEmpty()) {
+            mOutP.print(HTTP_1_1 + " 416 Range Not Satisfiable\r\n"
+                    + "Content-Range: bytes */" + fileLength + "\r\n"
+                    + "Content-Length: 0\r\n"
+                    + connectionHeader()
+                    + "\r\n");
+            mOutP.flush();
+            return true;
+        }
+
+        String header;
+        final boolean multipart = ranges != null && ranges.size() > 1;
+        if (ranges == null) {
+            ranges = Collections.singletonList(new ByteRange(0, fileLength - 1));
+            header = HTTP_1_1 + " 200 OK\r\n" + "Content-Type: " + contentType + "\r\n"
+                    + "Content-length: " + fileLength + "\r\n";
+        } else if (!multipart) {
+            ByteRange range = ranges.get(0);
+            header = HTTP_1_1 + " 206 Partial Content\r\n" + "Content-Type: " + contentType + "\r\n"
+                    + "Content-Range: " + range.contentRange(fileLength) + "\r\n"
+                    + "Content-length: " + range.length() + "\r\n";
+        } else {
+            header = HTTP_1_1 + " 206 Partial Content\r\n"
+                    + "Content-Type: multipart/byteranges; boundary=" + ByteRange.MULTIPART_BOUNDARY + "\r\n"
+                    + "Content-length: " + ByteRange.multipartLength(contentType, ranges, fileLength) + "\r\n";
+        }
+        if (sidecar != null) {
+            header += "Content-Encoding: " + sidecar.encoding + "\r\n";
+        }
+        if (sidecar != null || Compression.isCompressible(contentType)) {
+            header += "Vary: Accept-Encoding\r\n";
+        }
+        header += "Accept-Ranges: bytes\r\n"
+                + "ETag: " + etag + "\r\n"
+                + "Last-Modified: " + Validators.httpDate(lastModified) + "\r\n"
+                + "Content-Disposition: filename=\"" + f.getName() + "\"\r\n"
+                + connectionHeader()
+                + "\r\n";
+
+        long contentLength = 0;
+        for (ByteRange range : ranges) {
+            contentLength += range.length();
+        }
+        final long total = contentLength;
+
+        if (mHeadRequest) {
+            mOutP.print(header);
+            mOutP.flush();
+            return true;
+        }
+
+        long countFactor = getProgressBarFactor(total);
+        long max = total / countFactor;
 
         SwingUtilities.invokeLater(() -> mProgress.setMaximum((int) max));
         // send file
-        InputStream inputStream = null;
+        FileChannel fileChannel = null;
         long counter = 0;
-        final byte[] buffer = new byte[buffSize];
-        int result = 0;
+        long result = 0;
+        boolean complete = false;
+        FairShaper.Client shaper = null;
         try {
-            inputStream = new FileInputStream(f);
-
-            System.out.println("avail " + inputStream.available());
-
+            fileChannel = FileChannel.open(source.toPath(), StandardOpenOption.READ);
 
-            String header = "HTTP/1.0 200 OK\r\n" + "Content-Type: "
-                    + guessContentType(f.toString()) + "\r\n"
-                    + "Content-length: " + contentLength + "\r\n"
-                    + "Content-Disposition: filename=\"" + f.getName() + "\""
-                    + "\r\n\r\n";
+            // Sockets from a channel let transferTo() hand the file to the kernel without copying
+            WritableByteChannel out = mSocket.getChannel() != null ? mSocket.getChannel() : Channels.newChannel(mOut);
 
             System.out.println(header);
 
@@ -512,64 +1109,174 @@ public class NetworkInstance extends Thread implements MouseListener, ActionList
             updateLabel(f.getName() + " ( "
                     + mSocket.getInetAddress().getHostAddress() + " )");
             mLogArea.append("File sending started: " + f.getName() + "( "
-                    + mSocket.getInetAddress().getHostAddress() + " )\n");
+                    + mSocket.getInetAddress().getHostAddress() + " )"
+                    + (total < fileLength ? " " + total + " of " + fileLength + " bytes" : "")
+                    + (sidecar != null ? " " + sidecar.file.getName() : "") + "\n");
 
             counter = 0;
             long timeNanos = System.nanoTime() - 1000000000;
             long lastSize = 0;
 
-            double tooMuch = 0;
-            result = inputStream.read(buffer);
-            while (result > 0 && running) {
+            shaper = mMonitor.getDownloadShaper().open(mSocket.getInetAddress(),
+                    mMonitor.getFSList().sharedPath(f.toPath()), fileLength);
+            for (ByteRange range : ranges) {
+                if (multipart) {
+                    mOutP.print(ByteRange.partHeader(contentType, range, fileLength));
+                    mOutP.flush();
+                }
+
+                long position = range.start;
+                final long end = range.end + 1;
+                while (position < end && running) {
+
+                    final int chunk = shaper.chunkSize(Math.max(buffSize, UNTHROTTLED_CHUNK_SIZE));
+
+                    long nanosBefore = System.nanoTime();
+                    result = fileChannel.transferTo(position, Math.min(chunk, end - position), out);
+                    if (result <= 0) {
+                        // The file was truncated while sending
+                        break;
+                    }
+
+                    final long timeDiffNanos = nanosBefore - timeNanos;
+                    if (timeDiffNanos > 1000000000L) {
+                        double dBw = ((double) (counter - lastSize)) / (1000L * (timeDiffNanos/1000000000L));
+                        final long fCounter = counter;
+                        SwingUtilities.invokeLater(() -> mProgress.setString(String
+                                .format("%.2f%% / %.2f kB/s", ((double) fCounter / (double) (total)) * 100, dBw)));
+                        timeNanos = System.nanoTime();
+                        lastSize = counter;
+                    }
+                    position += result;
+                    counter += result;
+                    final long fCounter = counter;
+                    SwingUtilities.invokeLater(() -> mProgress.setValue((int) (fCounter / countFactor)));
+
+                    shaper.consume(result);
+                }
+                if (position < end) {
+                    break;
+                }
+            }
+            // If we made it through
+            complete = counter >= total;
+            if (complete && multipart) {
+                mOutP.print(ByteRange.multipartEnd());
+                mOutP.flush();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("was going to write " + result + " bytes + " + counter);
+            System.out
+                    .println("Exception in SendFile, probable cause: user aborted.");
+        } finally {
+            if (shaper != null) {
+                shaper.close();
+            }
+            if (fileChannel != null) {
+                try {
+                    fileChannel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        mLogArea
+                .append("File sending finished: " + f.getName() + "( "
+                        + mSocket.getInetAddress().getHostAddress() + " ) "
+                        + (total > 0 ? (double) ((double) counter / (double) total) * 100 : 100d)
+                        + "%\n");
+        return complete;
+    }
+
+    /**
+     * Sends the whole file compressed on the fly. The compressed length is not
+     * known up front, so the body goes out in HTTP/1.1 chunks.
+     *
+     * @return true if the whole response was sent
+     */
+    private boolean sendEncodedFile(File f, String encoding, String etag, int buffSize) throws InterruptedException {
+        final long total = f.length();
+        String header = HTTP_1_1 + " 200 OK\r\n" + "Content-Type: " + guessContentType(f.toString()) + "\r\n"
+                + "Content-Encoding: " + encoding + "\r\n"
+                + "Transfer-Encoding: chunked\r\n"
+                + "Vary: Accept-Encoding\r\n"
+                + "Accept-Ranges: bytes\r\n"
+                + "ETag: " + etag + "\r\n"
+                + "Last-Modified: " + Validators.httpDate(f.lastModified()) + "\r\n"
+                + "Content-Disposition: filename=\"" + f.getName() + "\"\r\n"
+                + connectionHeader()
+                + "\r\n";
+
+        mOutP.print(header);
+        mOutP.flush();
+        if (mHeadRequest) {
+            return true;
+        }
+
+        long countFactor = getProgressBarFactor(total);
+        long max = total / countFactor;
+        SwingUtilities.invokeLater(() -> mProgress.setMaximum((int) max));
 
+        updateLabel(f.getName() + " ( "
+                + mSocket.getInetAddress().getHostAddress() + " )");
+        mLogArea.append("File sending started: " + f.getName() + "( "
+                + mSocket.getInetAddress().getHostAddress() + " ) " + encoding + "\n");
+
+        ChunkedOutputStream chunked = new ChunkedOutputStream(mOut, Math.max(buffSize, 8192));
+        long counter = 0;
+        boolean complete = false;
+        Compression.Encoder encoder = null;
+        FairShaper.Client shaper = mMonitor.getDownloadShaper().open(mSocket.getInetAddress(),
+                mMonitor.getFSList().sharedPath(f.toPath()), total);
+        try (InputStream in = new FileInputStream(f)) {
+            encoder = new Compression.Encoder(chunked, encoding, mMonitor.getInMemory().compressionLevel);
+            byte[] buffer = new byte[Math.max(buffSize, 64 * 1024)];
+            long timeNanos = System.nanoTime() - 1000000000;
+            long lastSize = 0;
+            int read;
+            while (running && (read = in.read(buffer, 0, shaper.chunkSize(buffer.length))) > 0) {
                 long nanosBefore = System.nanoTime();
-                mOut.write(buffer, 0, result);
+                long sentBefore = chunked.getBytesWritten();
+                encoder.write(buffer, 0, read);
 
                 final long timeDiffNanos = nanosBefore - timeNanos;
                 if (timeDiffNanos > 1000000000L) {
                     double dBw = ((double) (counter - lastSize)) / (1000L * (timeDiffNanos/1000000000L));
                     final long fCounter = counter;
                     SwingUtilities.invokeLater(() -> mProgress.setString(String
-                            .format("%.2f%% / %.2f kB/s", ((double) fCounter / (double) (contentLength)) * 100, dBw)));
+                            .format("%.2f%% / %.2f kB/s", ((double) fCounter / (double) (total)) * 100, dBw)));
                     timeNanos = System.nanoTime();
                     lastSize = counter;
                 }
-                counter += result;
+                counter += read;
                 final long fCounter = counter;
                 SwingUtilities.invokeLater(() -> mProgress.setValue((int) (fCounter / countFactor)));
 
-                long nanosAfter = System.nanoTime();
-                // double secondsDiff = calcSecondsDiff(nanosBefore,
-                // nanosAfter);
-
-                double currShare = mMonitor.getShare() * 0.000000001; // kB/ns
-                tooMuch = bandWidthLimit(tooMuch, currShare, nanosAfter - nanosBefore, calcBandwidthUsed(
-                        nanosAfter - nanosBefore, buffSize));
-
-                result = inputStream.read(buffer);
+                // Tokens are spent on the compressed bytes that actually went out
+                shaper.consume(chunked.getBytesWritten() - sentBefore);
+            }
+            if (counter >= total) {
+                encoder.finishEncoding();
+                chunked.finishChunks();
+                complete = true;
             }
-            // If we made it through
-            counter = contentLength;
         } catch (IOException e) {
             e.printStackTrace();
-            System.out.println("was going to write " + result + " bytes + " + counter);
             System.out
-                    .println("Exception in SendFile, probable cause: user aborted.");
+                    .println("Exception in SendEncodedFile, probable cause: user aborted.");
         } finally {
-            if (inputStream != null) {
-                try {
-                    inputStream.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+            shaper.close();
+            if (encoder != null) {
+                encoder.release();
             }
         }
         mLogArea
                 .append("File sending finished: " + f.getName() + "( "
                         + mSocket.getInetAddress().getHostAddress() + " ) "
-                        + (double) ((double) counter / (double) contentLength) * 100
+                        + (total > 0 ? (double) ((double) counter / (double) total) * 100 : 100d)
                         + "%\n");
-
+        return complete;
     }
 
     private static long getProgressBarFactor(long contentLength) {
@@ -582,37 +1289,17 @@ public class NetworkInstance extends Thread implements MouseListener, ActionList
         return countFactor;
     }
 
-    private static double calcBandwidthUsed(long nanoSecondsDiff, int buffSize) {
-        return ((double) buffSize / 1024.0) / ((double) nanoSecondsDiff); // kB/ns
-    }
-
-    // v2
-    /**
-     * The return value must be fed back into the function as the tooMuch
-     * parameter, when using continuously in a loop
-     */
-    private static double bandWidthLimit(double tooMuch, double currShare, long nanoSecondsDiff, double shareUsed) // kB/ns
-            throws InterruptedException {
-        if (currShare > 0 && shareUsed > currShare) {
-            tooMuch += ((shareUsed - currShare) / currShare) * nanoSecondsDiff;
-
-            if (tooMuch > 1000000000.0) {
-                int nanoSleep = (int) (tooMuch % 999999);
-                long milliSleep = (long) ((tooMuch - nanoSleep) * 0.000001);
-
-                Thread.sleep(milliSleep, nanoSleep);
-                tooMuch = 0;
-            }
-        }
-        return tooMuch;
-    }
-
     public JProgressBar getProgressBar() {
         return mProgress;
     }
 
     public void stopNetworkInstance() {
         running = false;
+        synchronized (this) {
+            if (mWorker != null) {
+                mWorker.interrupt();
+            }
+        }
     }
 
     @Override
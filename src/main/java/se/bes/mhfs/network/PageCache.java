@@ -0,0 +1,158 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Erik Zivkovic
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package se.bes.mhfs.network;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Rendered listing pages, ready to send. A page is rendered again when its
+ * ETag changes, and concurrent requests for a page that is being rendered
+ * wait for that rendering instead of doing their own.
+ */
+class PageCache {
+    static final int MAX_PAGES = 256;
+
+    /**
+     * Budget for the plain pages; compressed copies are a fraction on top.
+     */
+    static final long MAX_BYTES = 32 * 1024 * 1024;
+
+    interface Renderer {
+        byte[] render();
+    }
+
+    /**
+     * A rendered page and its compressed copies, made the first time they are asked for.
+     */
+    static final class Page {
+        private final byte[] mBody;
+        private final Map<String, byte[]> mEncoded = new ConcurrentHashMap<>();
+
+        private Page(byte[] body) {
+            mBody = body;
+        }
+
+        /**
+         * @return false if the page is too small to be worth compressing
+         */
+        boolean isCompressible() {
+            return mBody.length >= Compression.MIN_SIZE;
+        }
+
+        /**
+         * @param encoding null for the plain page
+         */
+        byte[] body(String encoding, int level) throws IOException {
+            if (encoding == null || !isCompressible()) {
+                return mBody;
+            }
+            String key = encoding + level;
+            byte[] encoded = mEncoded.get(key);
+            if (encoded == null) {
+                encoded = Compression.compress(mBody, mBody.length, encoding, level);
+                mEncoded.put(key, encoded);
+            }
+            return encoded;
+        }
+    }
+
+    private static final class PageTask extends FutureTask<Page> {
+        final String etag;
+        int accounted;
+
+        PageTask(String etag, Renderer renderer) {
+            super(() -> new Page(renderer.render()));
+            this.etag = etag;
+        }
+    }
+
+    private final LinkedHashMap<String, PageTask> mPages = new LinkedHashMap<>(16, 0.75f, true);
+    private long mBytes;
+
+    /**
+     * @param etag validator of what the page shows, the page is rendered again when it changes
+     */
+    Page get(String key, String etag, Renderer renderer) throws IOException {
+        PageTask task;
+        boolean render = false;
+        synchronized (this) {
+            task = mPages.get(key);
+            if (task == null || !task.etag.equals(etag)) {
+                task = new PageTask(etag, renderer);
+                forget(mPages.put(key, task));
+                render = true;
+            }
+        }
+
+        if (render) {
+            task.run();
+        }
+        try {
+            Page page = task.get();
+            if (render) {
+                synchronized (this) {
+                    if (mPages.get(key) == task) {
+                        task.accounted = page.mBody.length;
+                        mBytes += task.accounted;
+                        evict();
+                    }
+                }
+            }
+            return page;
+        } catch (ExecutionException e) {
+            synchronized (this) {
+                if (mPages.remove(key, task)) {
+                    forget(task);
+                }
+            }
+            throw new IOException("Could not render " + key, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + key);
+        }
+    }
+
+    private void evict() {
+        Iterator<PageTask> it = mPages.values().iterator();
+        while ((mPages.size() > MAX_PAGES || mBytes > MAX_BYTES) && mPages.size() > 1 && it.hasNext()) {
+            forget(it.next());
+            it.remove();
+        }
+    }
+
+    private void forget(PageTask task) {
+        if (task != null) {
+            mBytes -= task.accounted;
+            task.accounted = 0;
+        }
+    }
+}
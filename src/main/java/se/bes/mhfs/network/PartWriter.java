@@ -0,0 +1,242 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Erik Zivkovic
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package se.bes.mhfs.network;
+
+import se.bes.mhfs.manager.HFSMonitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes one uploaded file on a thread of its own, so the connection keeps
+ * reading the body while the disk catches up. The reader fills buffers
+ * from {@link #buffer()} and queues them with {@link #write(ByteBuffer)};
+ * written buffers come back to be filled again. At most QUEUE_SIZE
+ * buffers are waiting, after that the reader waits for the disk.
+ * <p>
+ * The file is created with CREATE_NEW, an existing file is never
+ * overwritten. It is deleted again if the upload does not complete.
+ * <p>
+ * Writers run on a pool of at most MAX_THREADS threads, more wait their
+ * turn. A writer that has its thread only waits for its own connection or
+ * the disk, so the ones waiting always get to run.
+ */
+class PartWriter implements Runnable {
+    private static final int QUEUE_SIZE = 16;
+    private static final int MAX_THREADS = 8;
+    private static final long POLL_MILLIS = 100;
+    /**
+     * How long {@link #await()} waits for the disk before giving up on the file
+     */
+    private static final long AWAIT_SECONDS = 60;
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private static final AtomicInteger sCount = new AtomicInteger();
+    private static final ThreadPoolExecutor WRITERS = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS,
+            60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+        Thread t = new Thread(r, "MHFS-writer-" + sCount.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        WRITERS.allowCoreThreadTimeOut(true);
+    }
+
+    private final File mFile;
+    private final FileUpload mUpload;
+    private final HFSMonitor mMonitor;
+    private final int mBufferSize;
+    private final BlockingQueue<ByteBuffer> mQueue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final BlockingQueue<ByteBuffer> mFree = new ArrayBlockingQueue<>(QUEUE_SIZE + 1);
+    private final CountDownLatch mDone = new CountDownLatch(1);
+    private volatile IOException mError;
+    private volatile boolean mComplete;
+    private volatile boolean mClosed;
+    private volatile boolean mCancelled;
+    private volatile boolean mSaved;
+
+    private PartWriter(File file, FileUpload upload, HFSMonitor monitor, int bufferSize) {
+        mFile = file;
+        mUpload = upload;
+        mMonitor = monitor;
+        mBufferSize = bufferSize;
+    }
+
+    /**
+     * Starts writing file, shows its progress in the monitor until done.
+     */
+    static PartWriter start(File file, FileUpload upload, HFSMonitor monitor, int bufferSize) {
+        PartWriter writer = new PartWriter(file, upload, monitor, bufferSize);
+        monitor.addUpload(upload);
+        WRITERS.execute(writer);
+        return writer;
+    }
+
+    /**
+     * @return an empty buffer to fill and {@link #write}
+     */
+    ByteBuffer buffer() {
+        ByteBuffer buffer = mFree.poll();
+        return buffer != null ? buffer : ByteBuffer.allocate(mBufferSize);
+    }
+
+    /**
+     * Queues buffer, from its position to its limit, to be written.
+     *
+     * @throws IOException if writing has failed already
+     */
+    void write(ByteBuffer buffer) throws IOException, InterruptedException {
+        IOException error = mError;
+        if (error != null) {
+            throw error;
+        }
+        mQueue.put(buffer);
+    }
+
+    /**
+     * Ends the file after what has been queued. Does not wait for the
+     * writer, {@link #await()} does. Never blocks, so it also works on a
+     * thread that has been interrupted to stop the transfer.
+     *
+     * @param complete false to throw away what was written, like when the
+     *                 body was cut short
+     */
+    void close(boolean complete) {
+        mComplete = complete;
+        mClosed = true;
+        // If the queue is full the writer sees mClosed once it has emptied it
+        mQueue.offer(END);
+    }
+
+    /**
+     * Waits until the writer is done. If that takes too long, or the
+     * waiting thread is interrupted, the file is given up on.
+     *
+     * @return true if the whole file is on disk
+     */
+    boolean await() {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    if (!mDone.await(AWAIT_SECONDS, TimeUnit.SECONDS)) {
+                        mCancelled = true;
+                        return false;
+                    }
+                    break;
+                } catch (InterruptedException e) {
+                    // Stopped by the operator, the writer quits at its next buffer
+                    interrupted = true;
+                    mCancelled = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return mSaved;
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    /**
+     * @return why the file could not be written, or null
+     */
+    IOException getError() {
+        return mError;
+    }
+
+    @Override
+    public void run() {
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(mFile.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            mError = e;
+        }
+
+        try {
+            // Keep taking after an error, so the reader never blocks on a full queue
+            while (!mCancelled) {
+                ByteBuffer buffer = mQueue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (buffer == null) {
+                    if (mClosed && mQueue.isEmpty()) {
+                        break;
+                    }
+                    continue;
+                }
+                if (buffer == END) {
+                    break;
+                }
+                if (mError == null) {
+                    try {
+                        long written = 0;
+                        while (buffer.hasRemaining()) {
+                            written += channel.write(buffer);
+                        }
+                        mUpload.addWritten(written);
+                    } catch (IOException e) {
+                        mError = e;
+                    }
+                }
+                buffer.clear();
+                mFree.offer(buffer);
+            }
+        } catch (InterruptedException e) {
+            mError = new IOException("Interrupted while writing " + mFile, e);
+        } finally {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    if (mError == null) {
+                        mError = e;
+                    }
+                }
+                mSaved = mComplete && !mCancelled && mError == null;
+                if (!mSaved) {
+                    // Don't leave half a file behind, it would block a retry from overwriting it
+                    mFile.delete();
+                }
+            }
+            mMonitor.removeUpload(mUpload);
+            mDone.countDown();
+        }
+    }
+}
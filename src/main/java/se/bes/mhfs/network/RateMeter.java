@@ -0,0 +1,62 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Erik Zivkovic
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package se.bes.mhfs.network;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counts moved bytes and turns them into a rate, sampled about once a
+ * second when asked for.
+ */
+class RateMeter {
+    private static final long SAMPLE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private long mBytes;
+    private long mSampleBytes;
+    private long mSampleNanos = System.nanoTime();
+    private double mRate;
+
+    synchronized void add(long bytes) {
+        mBytes += bytes;
+    }
+
+    synchronized long getBytes() {
+        return mBytes;
+    }
+
+    /**
+     * @return kB/s over about the last second
+     */
+    synchronized double getRate() {
+        long now = System.nanoTime();
+        long elapsed = now - mSampleNanos;
+        if (elapsed >= SAMPLE_NANOS) {
+            mRate = (mBytes - mSampleBytes) / 1024d / (elapsed / 1000000000d);
+            mSampleBytes = mBytes;
+            mSampleNanos = now;
+        }
+        return mRate;
+    }
+}
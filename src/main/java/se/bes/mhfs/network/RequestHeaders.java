@@ -0,0 +1,169 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Erik Zivkovic
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package se.bes.mhfs.network;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parses a request head (request line and header fields) in place. Names and
+ * values are kept as offsets into the caller's buffer and only become strings
+ * when asked for, so they are valid until the buffer is reused.
+ */
+class RequestHeaders {
+    static final int MAX_HEADER_SIZE = 16 * 1024;
+    static final int MAX_HEADER_COUNT = 100;
+
+    // nameStart, nameEnd, valueStart, valueEnd for each field
+    private final int[] mFields = new int[MAX_HEADER_COUNT * 4];
+    private int mCount;
+    private byte[] mBuf;
+    private int mLineStart;
+    private int mLineEnd;
+
+    static class TooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        TooLargeException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Finds the blank line that ends a head starting at start. Bytes before
+     * from have already been scanned.
+     *
+     * @return the index after the blank line, or -1 if it has not arrived yet
+     */
+    static int findEnd(byte[] b, int start, int from, int end) {
+        for (int i = Math.max(start + 1, from); i < end; i++) {
+            if (b[i] == '\n') {
+                if (b[i - 1] == '\n') {
+                    return i + 1;
+                }
+                if (b[i - 1] == '\r' && i - 2 >= start && b[i - 2] == '\n') {
+                    return i + 1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param end index after the blank line, as returned by {@link #findEnd}
+     */
+    void parse(byte[] buf, int start, int end) throws TooLargeException {
+        mBuf = buf;
+        mCount = 0;
+
+        int eol = indexOf(buf, (byte) '\n', start, end);
+        mLineStart = start;
+        mLineEnd = trimCR(buf, start, eol);
+
+        int pos = eol + 1;
+        while (pos < end) {
+            eol = indexOf(buf, (byte) '\n', pos, end);
+            int lineEnd = trimCR(buf, pos, eol);
+            if (lineEnd == pos) {
+                break;
+            }
+
+            int colon = indexOf(buf, (byte) ':', pos, lineEnd);
+            if (colon < 0) {
+                System.err.println("Error, Request had non \": \" separator");
+            } else {
+                if (mCount == MAX_HEADER_COUNT) {
+                    throw new TooLargeException("More than " + MAX_HEADER_COUNT + " header fields");
+                }
+                int valueStart = colon + 1;
+                while (valueStart < lineEnd && (buf[valueStart] == ' ' || buf[valueStart] == '\t')) {
+                    valueStart++;
+                }
+                int valueEnd = lineEnd;
+                while (valueEnd > valueStart && (buf[valueEnd - 1] == ' ' || buf[valueEnd - 1] == '\t')) {
+                    valueEnd--;
+                }
+                int i = mCount * 4;
+                mFields[i] = pos;
+                mFields[i + 1] = colon;
+                mFields[i + 2] = valueStart;
+                mFields[i + 3] = valueEnd;
+                mCount++;
+            }
+            pos = eol + 1;
+        }
+    }
+
+    String getRequestLine() {
+        return new String(mBuf, mLineStart, mLineEnd - mLineStart, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @return the value of the first field called name, ignoring case, or null
+     */
+    String get(String name) {
+        for (int i = 0; i < mCount * 4; i += 4) {
+            if (nameEquals(mFields[i], mFields[i + 1], name)) {
+                return new String(mBuf, mFields[i + 2], mFields[i + 3] - mFields[i + 2], StandardCharsets.ISO_8859_1);
+            }
+        }
+        return null;
+    }
+
+    int size() {
+        return mCount;
+    }
+
+    private boolean nameEquals(int start, int end, String name) {
+        if (end - start != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            int a = mBuf[start + i];
+            int b = name.charAt(i);
+            if (a != b && toLower(a) != toLower(b)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int toLower(int c) {
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+
+    private static int indexOf(byte[] b, byte value, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (b[i] == value) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    private static int trimCR(byte[] b, int start, int eol) {
+        return eol > start && b[eol - 1] == '\r' ? eol - 1 : eol;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Erik Zivkovic
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package se.bes.mhfs.network;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Buffered socket input that reads request heads into one reusable buffer
+ * and parses them with {@link RequestHeaders}. Body bytes that arrive with a
+ * head are served by the read methods before the socket is read again.
+ */
+class RequestStream extends InputStream {
+    private final InputStream mIn;
+    private final byte[] mBuf = new byte[RequestHeaders.MAX_HEADER_SIZE];
+    private final RequestHeaders mHeaders = new RequestHeaders();
+
+    // The parsed head lives in mBuf[0, mHeadEnd) and must not be overwritten
+    private int mHeadEnd;
+    private int mPos;
+    private int mLimit;
+
+    /**
+     * @param prefetched bytes already read from in, at most
+     *                   {@link RequestHeaders#MAX_HEADER_SIZE} long
+     */
+    RequestStream(InputStream in, byte[] prefetched) {
+        this.mIn = in;
+        System.arraycopy(prefetched, 0, mBuf, 0, prefetched.length);
+        mLimit = prefetched.length;
+    }
+
+    /**
+     * Reads the next head, e.g. a request or the head of a multipart part.
+     * Empty lines in front of it are skipped. The headers from the previous
+     * call are no longer valid afterwards.
+     *
+     * @return the number of bytes consumed, or -1 if the stream ended first
+     */
+    int readHead() throws IOException {
+        int unread = mLimit - mPos;
+        System.arraycopy(mBuf, mPos, mBuf, 0, unread);
+        mHeadEnd = 0;
+        mPos = 0;
+        mLimit = unread;
+
+        int start = 0;
+        int from = 0;
+        while (true) {
+            while (from == start && start < mLimit && (mBuf[start] == '\r' || mBuf[start] == '\n')) {
+                start++;
+                from++;
+            }
+
+            int end = RequestHeaders.findEnd(mBuf, start, from, mLimit);
+            if (end >= 0) {
+                mHeaders.parse(mBuf, start, end);
+                mPos = end;
+                mHeadEnd = end;
+                return end;
+            }
+
+            from = mLimit;
+            if (mLimit == mBuf.length) {
+                throw new RequestHeaders.TooLargeException("Header larger than " + mBuf.length + " bytes");
+            }
+            int read = mIn.read(mBuf, mLimit, mBuf.length - mLimit);
+            if (read == -1) {
+                if (start == mLimit) {
+                    return -1;
+                }
+                throw new EOFException("Stream ended inside a header");
+            }
+            mLimit += read;
+        }
+    }
+
+    RequestHeaders getHeaders() {
+        return mHeaders;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (mPos >= mLimit && !fill()) {
+            return mHeadEnd == mBuf.length ? mIn.read() : -1;
+        }
+        return mBuf[mPos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (mPos >= mLimit) {
+            // Large reads go straight to the caller's array
+            if (len >= mBuf.length - mHeadEnd) {
+                return mIn.read(b, off, len);
+            }
+            if (!fill()) {
+                return -1;
+            }
+        }
+        int n = Math.min(len, mLimit - mPos);
+        System.arraycopy(mBuf, mPos, b, off, n);
+        mPos += n;
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (mLimit - mPos) + mIn.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    private boolean fill() throws IOException {
+        mPos = mHeadEnd;
+        mLimit = mHeadEnd;
+        if (mHeadEnd == mBuf.length) {
+            return false;
+        }
+        int read = mIn.read(mBuf, mHeadEnd, mBuf.length - mHeadEnd);
+        if (read <= 0) {
+            return false;
+        }
+        mLimit += read;
+        return true;
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Erik Zivkovic
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package se.bes.mhfs.network;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Gathers a response in a pooled buffer so it reaches the socket in as few
+ * writes as possible, instead of one write per println.
+ * <p>
+ * After {@link #begin(String, String)} the body is collected until
+ * {@link #finish()}, which sends the head with a computed Content-Length and
+ * the body in one write. A body that outgrows the buffer is streamed in
+ * buffer-sized chunks instead, with chunked transfer coding when the client
+ * speaks HTTP/1.1, or else unframed, and the caller must close the connection.
+ * Without begin(), everything written is passed through unframed, e.g. for
+ * plugins that write their own head; it is still gathered, so a page
+ * printed line by line leaves in one write when it fits the buffer.
+ */
+public class ResponseWriter extends OutputStream {
+    static final int BUFFER_SIZE = 64 * 1024;
+    private static final int POOL_SIZE = 64;
+    private static final ArrayBlockingQueue<byte[]> sPool = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    private final OutputStream mOut;
+    private final boolean mChunkedAllowed;
+    private PrintStream mPrinter;
+    private ChunkedOutputStream mChunked;
+
+    private byte[] mBuffer;
+    private int mCount;
+    private String mHead;
+    private boolean mStreaming;
+
+    /**
+     * Unframed writer, for callers that write their own head.
+     */
+    public ResponseWriter(OutputStream out) {
+        this(out, false);
+    }
+
+    /**
+     * @param chunkedAllowed true if the client speaks HTTP/1.1, so a body
+     *                       that does not fit the buffer can be chunked
+     */
+    ResponseWriter(OutputStream out, boolean chunkedAllowed) {
+        mOut = out;
+        mChunkedAllowed = chunkedAllowed;
+    }
+
+    /**
+     * Starts a response whose Content-Length is computed in {@link #finish()}.
+     *
+     * @param headers header lines, each ending with CRLF, without Content-Length
+     */
+    void begin(String statusLine, String headers) {
+        mHead = statusLine + "\r\n" + headers;
+        mCount = 0;
+        mStreaming = false;
+    }
+
+    /**
+     * Sends a complete response in one write.
+     *
+     * @param headers header lines, each ending with CRLF, without Content-Length
+     */
+    void send(String statusLine, String headers, byte[] body, int length) throws IOException {
+        byte[] head = (statusLine + "\r\n" + headers + "Content-Length: " + length + "\r\n\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1);
+        if (head.length + length <= BUFFER_SIZE) {
+            byte[] buffer = acquire();
+            System.arraycopy(head, 0, buffer, 0, head.length);
+            System.arraycopy(body, 0, buffer, head.length, length);
+            try {
+                mOut.write(buffer, 0, head.length + length);
+                mOut.flush();
+            } finally {
+                release(buffer);
+            }
+        } else {
+            // Too big to copy, two writes cost less than the copy
+            mOut.write(head);
+            mOut.write(body, 0, length);
+            mOut.flush();
+        }
+    }
+
+    /**
+     * @return a PrintStream over this writer, for the HTML helpers
+     */
+    public PrintStream printer() {
+        if (mPrinter == null) {
+            mPrinter = new PrintStream(this);
+        }
+        return mPrinter;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (mChunked != null) {
+            mChunked.write(b);
+            return;
+        }
+        if (mBuffer == null) {
+            mBuffer = acquire();
+        }
+        if (mCount == mBuffer.length) {
+            drain();
+        }
+        mBuffer[mCount++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (mChunked != null) {
+            mChunked.write(b, off, len);
+            return;
+        }
+        if (mBuffer == null) {
+            mBuffer = acquire();
+        }
+        while (len > 0) {
+            if (mCount == mBuffer.length) {
+                drain();
+            }
+            int n = Math.min(len, mBuffer.length - mCount);
+            System.arraycopy(b, off, mBuffer, mCount, n);
+            mCount += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Does nothing, the response leaves in {@link #finish()} or when the buffer is full.
+     */
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * Sends what is left of the response and returns the buffer to the pool.
+     */
+    public void finish() throws IOException {
+        if (mPrinter != null) {
+            mPrinter.flush();
+        }
+        try {
+            if (mHead != null && !mStreaming) {
+                byte[] head = (mHead + "Content-Length: " + mCount + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+                if (mBuffer != null && head.length + mCount <= mBuffer.length) {
+                    System.arraycopy(mBuffer, 0, mBuffer, head.length, mCount);
+                    System.arraycopy(head, 0, mBuffer, 0, head.length);
+                    mOut.write(mBuffer, 0, head.length + mCount);
+                } else {
+                    mOut.write(head);
+                    if (mCount > 0) {
+                        mOut.write(mBuffer, 0, mCount);
+                    }
+                }
+            } else {
+                drain();
+                if (mChunked != null) {
+                    mChunked.finishChunks();
+                }
+            }
+            mOut.flush();
+        } finally {
+            mHead = null;
+            mChunked = null;
+            mCount = 0;
+            if (mBuffer != null) {
+                release(mBuffer);
+                mBuffer = null;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+    }
+
+    /**
+     * Writes out the full buffer, sending the head first if that has not been
+     * done. Once a body is chunked, later writes go straight to the chunk encoder.
+     */
+    private void drain() throws IOException {
+        if (mHead != null && !mStreaming) {
+            mStreaming = true;
+            mOut.write((mHead + (mChunkedAllowed ? "Transfer-Encoding: chunked\r\n" : "") + "\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            if (mChunkedAllowed) {
+                mChunked = new ChunkedOutputStream(mOut, BUFFER_SIZE);
+            }
+        }
+        if (mCount == 0) {
+            return;
+        }
+        if (mChunked != null) {
+            mChunked.write(mBuffer, 0, mCount);
+        } else {
+            mOut.write(mBuffer, 0, mCount);
+        }
+        mCount = 0;
+    }
+
+    private static byte[] acquire() {
+        byte[] buffer = sPool.poll();
+        return buffer != null ? buffer : new byte[BUFFER_SIZE];
+    }
+
+    private static void release(byte[] buffer) {
+        sPool.offer(buffer);
+    }
+}
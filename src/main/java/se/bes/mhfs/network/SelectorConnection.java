@@ -0,0 +1,433 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Erik Zivkovic
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package se.bes.mhfs.network;
+
+import se.bes.mhfs.filesystem.DirEntry;
+import se.bes.mhfs.filesystem.FSList;
+import se.bes.mhfs.logger.MHFSLogger;
+import se.bes.mhfs.manager.HFSMonitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * State of one client connection served by the {@link SelectorNetwork}.
+ * Requests that need a blocking stream (uploads and plugins) are handed over
+ * to a {@link NetworkInstance} instead, and listings are rendered on a worker.
+ */
+class SelectorConnection {
+
+    private static final String POST = "POST";
+    private static final String PUT = "PUT";
+    private static final String HEAD = "HEAD";
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    enum State {
+        READ,
+        WRITE,
+        RENDER, // render() has to run on a worker before the response can be written
+        HANDOFF,
+        CLOSE,
+    }
+
+    private final SocketChannel mChannel;
+    private final HFSMonitor mMonitor;
+    private final MHFSLogger mLogArea;
+    private final String mHost;
+
+    private final ByteBuffer mIn = ByteBuffer.allocate(RequestHeaders.MAX_HEADER_SIZE);
+    private final RequestHeaders mHeaders = new RequestHeaders();
+    private int mScanned;
+    private boolean mHeadRequest;
+    private ListingView mView;
+    private String mListing; // place to render
+    private final ArrayDeque<Segment> mSegments = new ArrayDeque<>();
+
+    private File mFile;
+    private FileChannel mFileChannel;
+    private long mContentLength;
+    private long mSent;
+    private FairShaper.Client mShaper; // while a file is open
+    private long mPrepaid; // tokens taken for the next chunk of the file
+    private long mPrepaidAtNanos;
+
+    long resumeAtNanos;
+
+    /**
+     * Bytes to write: a head followed by a region of the open file, if any.
+     */
+    private static class Segment {
+        final ByteBuffer head;
+        long position;
+        final long end;
+
+        Segment(String head, long position, long end) {
+            this(ByteBuffer.wrap(head.getBytes(StandardCharsets.ISO_8859_1)), position, end);
+        }
+
+        Segment(ByteBuffer head, long position, long end) {
+            this.head = head;
+            this.position = position;
+            this.end = end;
+        }
+    }
+
+    SelectorConnection(SocketChannel channel, HFSMonitor monitor, MHFSLogger logArea) {
+        this.mChannel = channel;
+        this.mMonitor = monitor;
+        this.mLogArea = logArea;
+        this.mHost = channel.socket().getInetAddress().getHostAddress();
+    }
+
+    State onReadable() throws IOException {
+        if (mChannel.read(mIn) == -1) {
+            return State.CLOSE;
+        }
+
+        int end = RequestHeaders.findEnd(mIn.array(), 0, mScanned, mIn.position());
+        mScanned = mIn.position();
+        if (end < 0) {
+            if (!mIn.hasRemaining()) {
+                respond("431 Request Header Fields Too Large");
+                return State.WRITE;
+            }
+            return State.READ;
+        }
+
+        try {
+            mHeaders.parse(mIn.array(), 0, end);
+        } catch (RequestHeaders.TooLargeException e) {
+            respond("431 Request Header Fields Too Large");
+            return State.WRITE;
+        }
+        String req = mHeaders.getRequestLine();
+        System.out.println(req);
+        String[] strings = req.split(" ");
+        if (strings.length < 2) {
+            respond("400 Bad Request");
+            return State.WRITE;
+        }
+
+        if (strings[0].equalsIgnoreCase(POST) || strings[0].equalsIgnoreCase(PUT)) {
+            return State.HANDOFF;
+        }
+        mHeadRequest = strings[0].equalsIgnoreCase(HEAD);
+
+        Map<String, String> query = new HashMap<>();
+        String path = ListingView.splitTarget(strings[1], query);
+        mView = ListingView.from(query, mHeaders.get("Accept"));
+        if (path.length() == 0 || path.equals("/")) {
+            path = "";
+        }
+        if (!mMonitor.isCustomList() && mMonitor.getFSList().isLargeDir(path)) {
+            // Streaming a huge listing is blocking work, a worker does it
+            return State.HANDOFF;
+        }
+        if (path.isEmpty()) {
+            if (mView.json) {
+                // JSON listings are streamed, a worker does it
+                return State.HANDOFF;
+            }
+            mListing = "";
+            return State.RENDER;
+        }
+
+        if (mMonitor.getPluginManager().getPluginByIdentifier(mMonitor.getFSList().fileName(path)) != null) {
+            return State.HANDOFF;
+        }
+
+        File f = NetworkInstance.resolveFile(mMonitor, path);
+        if (f != null && Compression.findSidecar(f, mHeaders.get("Accept-Encoding")) == null
+                && Compression.forFile(mHeaders, NetworkInstance.guessContentType(f.toString()), f.length(),
+                mMonitor.getInMemory().compressionLevel) != null) {
+            // Compressing is CPU work that would stall the loop, a worker streams it instead
+            return State.HANDOFF;
+        } else if (f != null) {
+            openFile(f);
+        } else if (NetworkInstance.isFavicon(path)) {
+            if (Validators.isNotModified(mHeaders, NetworkInstance.FAVICON_ETAG, 0)) {
+                respond("304 Not Modified", "ETag: " + NetworkInstance.FAVICON_ETAG + "\r\n");
+            } else {
+                respond("200 OK", "Content-Type: " + NetworkInstance.guessContentType(".ico") + "\r\n"
+                        + "Cache-Control: max-age=86400\r\n"
+                        + "ETag: " + NetworkInstance.FAVICON_ETAG + "\r\n", NetworkInstance.FAVICON);
+            }
+        } else if (mView.json) {
+            return State.HANDOFF;
+        } else {
+            mListing = path;
+            return State.RENDER;
+        }
+        return State.WRITE;
+    }
+
+    /**
+     * @return true when the whole response has been written
+     */
+    boolean onWritable() throws IOException {
+        Segment segment;
+        while ((segment = mSegments.peek()) != null) {
+            if (segment.head.hasRemaining()) {
+                mChannel.write(segment.head);
+                if (segment.head.hasRemaining()) {
+                    return false;
+                }
+            }
+            if (segment.position < segment.end) {
+                // One chunk per event, so other connections on this loop get their turn
+                long chunk = mPrepaid > 0 ? mPrepaid : mShaper.chunkSize(CHUNK_SIZE);
+                long n = mFileChannel.transferTo(segment.position, Math.min(segment.end - segment.position, chunk), mChannel);
+                // Settle up for what actually went out, a short write gives tokens back
+                mShaper.take(Math.max(n, 0) - mPrepaid);
+                mPrepaid = 0;
+                if (n > 0) {
+                    segment.position += n;
+                    mSent += n;
+                } else if (segment.position >= mFileChannel.size()) {
+                    throw new IOException("File truncated while sending: " + mFile);
+                }
+                if (segment.position < segment.end) {
+                    return false;
+                }
+            }
+            mSegments.poll();
+        }
+        return true;
+    }
+
+    /**
+     * @return nanoseconds to wait before the next chunk of the file may be written
+     */
+    long throttleNanos() {
+        if (mFileChannel == null || !mShaper.isLimited()) {
+            return 0;
+        }
+        if (mPrepaid == 0) {
+            // Tokens are taken before the chunk is written, so connections
+            // waiting on the bucket get their turns in the order they asked
+            mPrepaid = mShaper.chunkSize(CHUNK_SIZE);
+            mPrepaidAtNanos = System.nanoTime() + mShaper.take(mPrepaid);
+        }
+        return Math.max(0, mPrepaidAtNanos - System.nanoTime());
+    }
+
+    /**
+     * Lists the directory asked for and renders its page, on a worker since
+     * both may block. The event loop leaves the connection alone until it returns.
+     */
+    void render() {
+        try {
+            printDirList(mListing);
+        } catch (IOException | RuntimeException e) {
+            mLogArea.append("File List failed: " + e + " ( " + mHost + " )\n");
+            mSegments.clear();
+            respond("500 Internal Server Error");
+        }
+    }
+
+    /**
+     * Answers a listing when all workers are busy.
+     */
+    void reject() {
+        mLogArea.append("Connection rejected, all workers are busy. ( " + mHost + " )\n");
+        respond("503 Service Unavailable", "Retry-After: 1\r\n");
+    }
+
+    byte[] getPrefetched() {
+        return Arrays.copyOf(mIn.array(), mIn.position());
+    }
+
+    void close() {
+        if (mFileChannel != null) {
+            if (mPrepaid > 0) {
+                // Give back the tokens taken for a chunk that never went out
+                mShaper.take(-mPrepaid);
+                mPrepaid = 0;
+            }
+            mShaper.close();
+            try {
+                mFileChannel.close();
+            } catch (IOException e) {
+                mLogArea.append("Closing " + mFile.getName() + " failed: " + e.getMessage() + " ( " + mHost + " )\n");
+            }
+            mLogArea.append("File sending finished: " + mFile.getName() + "( " + mHost + " ) "
+                    + (mContentLength > 0 ? (double) mSent / (double) mContentLength * 100 : 100d)
+                    + "%\n");
+            mFileChannel = null;
+        }
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            mLogArea.append("Closing the connection failed: " + e.getMessage() + " ( " + mHost + " )\n");
+        }
+    }
+
+    private void respond(String status) {
+        respond(status, "");
+    }
+
+    private void respond(String status, String headers) {
+        mSegments.add(new Segment("HTTP/1.0 " + status + "\r\n"
+                + headers
+                + "Content-Length: 0\r\n\r\n", 0, 0));
+    }
+
+    /**
+     * Queues a complete response with body, only the head for HEAD requests.
+     */
+    private void respond(String status, String headers, byte[] body) {
+        byte[] header = ("HTTP/1.0 " + status + "\r\n"
+                + headers
+                + "Content-Length: " + body.length + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        int bodyLength = mHeadRequest ? 0 : body.length;
+        ByteBuffer head = ByteBuffer.allocate(header.length + bodyLength);
+        head.put(header).put(body, 0, bodyLength).flip();
+        mSegments.add(new Segment(head, 0, 0));
+    }
+
+    private void printDirList(String place) throws IOException {
+        final int level = mMonitor.getInMemory().compressionLevel;
+        String encoding = Compression.negotiate(mHeaders.get("Accept-Encoding"), level);
+        String plainETag;
+        String etag;
+        PageCache.Page page;
+        if (mMonitor.isCustomList()) {
+            plainETag = Validators.customListETag(mMonitor.getInMemory().customFiles);
+            etag = Compression.variantETag(plainETag, encoding);
+            if (Validators.isNotModified(mHeaders, etag, 0)) {
+                respond("304 Not Modified", "ETag: " + etag + "\r\n");
+                return;
+            }
+            page = DirListing.customPage(mMonitor, mView, plainETag);
+        } else {
+            FSList fs = mMonitor.getFSList();
+            DirEntry[] dirs = fs.getDirs(place, mView.sort);
+            DirEntry[] files = fs.getFiles(place, mView.sort);
+            if (dirs == null || files == null) {
+                respond("404 Not Found", "Content-Type: " + NetworkInstance.guessContentType(".html") + "\r\n"
+                        + "Cache-Control: no-cache\r\n", NetworkInstance.NOT_FOUND_PAGE);
+                return;
+            }
+            plainETag = Validators.listingETag(dirs, files);
+            etag = Compression.variantETag(plainETag, encoding);
+            if (Validators.isNotModified(mHeaders, etag, 0)) {
+                respond("304 Not Modified", "ETag: " + etag + "\r\n");
+                return;
+            }
+            page = DirListing.standardPage(mMonitor, place, mView, dirs, files, plainETag);
+        }
+        if (!page.isCompressible()) {
+            encoding = null;
+        }
+        respond("200 OK", "Content-Type: " + NetworkInstance.guessContentType(".html") + "\r\n"
+                + "Cache-Control: no-cache\r\n"
+                + "ETag: " + etag + "\r\n"
+                + "Vary: Accept, Accept-Encoding\r\n"
+                + (encoding != null ? "Content-Encoding: " + encoding + "\r\n" : ""), page.body(encoding, level));
+        mLogArea.append("File List Sent. ( " + mHost + " )\n");
+    }
+
+    private void openFile(File f) throws IOException {
+        // Byte ranges always refer to the plain file
+        final Compression.Sidecar sidecar = mHeaders.get("Range") == null
+                ? Compression.findSidecar(f, mHeaders.get("Accept-Encoding")) : null;
+        final File source = sidecar != null ? sidecar.file : f;
+
+        final long fileLength = source.length();
+        final long lastModified = f.lastModified();
+        final String contentType = NetworkInstance.guessContentType(f.toString());
+        final String etag = sidecar != null
+                ? Compression.variantETag(Validators.fileETag(sidecar.file), sidecar.encoding)
+                : Validators.fileETag(f);
+
+        if (Validators.isNotModified(mHeaders, etag, lastModified)) {
+            respond("304 Not Modified", "ETag: " + etag + "\r\n"
+                    + "Last-Modified: " + Validators.httpDate(lastModified) + "\r\n");
+            return;
+        }
+
+        List<ByteRange> ranges = Validators.ifRangeMatches(mHeaders, etag, lastModified)
+                ? ByteRange.parse(mHeaders.get("Range"), fileLength) : null;
+        if (ranges != null && ranges.isEmpty()) {
+            respond("416 Range Not Satisfiable", "Content-Range: bytes */" + fileLength + "\r\n");
+            return;
+        }
+
+        final String common = (sidecar != null ? "Content-Encoding: " + sidecar.encoding + "\r\n" : "")
+                + (sidecar != null || Compression.isCompressible(contentType) ? "Vary: Accept-Encoding\r\n" : "")
+                + "Accept-Ranges: bytes\r\n"
+                + "ETag: " + etag + "\r\n"
+                + "Last-Modified: " + Validators.httpDate(lastModified) + "\r\n"
+                + "Content-Disposition: filename=\"" + f.getName() + "\"\r\n\r\n";
+        if (ranges == null) {
+            mContentLength = fileLength;
+            mSegments.add(new Segment("HTTP/1.0 200 OK\r\n" + "Content-Type: " + contentType + "\r\n"
+                    + "Content-length: " + fileLength + "\r\n" + common, 0, fileLength));
+        } else if (ranges.size() == 1) {
+            ByteRange range = ranges.get(0);
+            mContentLength = range.length();
+            mSegments.add(new Segment("HTTP/1.0 206 Partial Content\r\n" + "Content-Type: " + contentType + "\r\n"
+                    + "Content-Range: " + range.contentRange(fileLength) + "\r\n"
+                    + "Content-length: " + range.length() + "\r\n" + common, range.start, range.end + 1));
+        } else {
+            mSegments.add(new Segment("HTTP/1.0 206 Partial Content\r\n"
+                    + "Content-Type: multipart/byteranges; boundary=" + ByteRange.MULTIPART_BOUNDARY + "\r\n"
+                    + "Content-length: " + ByteRange.multipartLength(contentType, ranges, fileLength) + "\r\n"
+                    + common, 0, 0));
+            mContentLength = 0;
+            for (ByteRange range : ranges) {
+                mContentLength += range.length();
+                mSegments.add(new Segment(ByteRange.partHeader(contentType, range, fileLength), range.start, range.end + 1));
+            }
+            mSegments.add(new Segment(ByteRange.multipartEnd(), 0, 0));
+        }
+
+        if (mHeadRequest) {
+            // keep only the response head, without its file region
+            ByteBuffer head = mSegments.getFirst().head;
+            mSegments.clear();
+            mSegments.add(new Segment(head, 0, 0));
+            return;
+        }
+
+        mFileChannel = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+        mShaper = mMonitor.getDownloadShaper().open(mChannel.socket().getInetAddress(),
+                mMonitor.getFSList().sharedPath(f.toPath()), fileLength);
+        mFile = f;
+        mSent = 0;
+
+        mLogArea.append("File sending started: " + f.getName() + "( " + mHost + " )\n");
+    }
+}
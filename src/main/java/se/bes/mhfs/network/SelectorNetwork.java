@@ -0,0 +1,274 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Erik Zivkovic
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package se.bes.mhfs.network;
+
+import se.bes.mhfs.logger.MHFSLogger;
+import se.bes.mhfs.manager.HFSMonitor;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Non-blocking server engine. Accepted connections are spread over a few
+ * selector threads that parse requests and stream files without a thread
+ * per client. Listings are read and rendered by the workers, the loops only
+ * send them. Uploads and plugins still need a blocking socket and are handed
+ * over to a {@link NetworkInstance}.
+ */
+public class SelectorNetwork extends Network {
+    private static final int MAX_EVENT_LOOPS = 4;
+
+    SelectorNetwork(MHFSLogger label, HFSMonitor monitor) {
+        super(label, monitor);
+    }
+
+    @Override
+    protected void serve(ServerSocketChannel server, ConnectionExecutor executor) throws IOException {
+        EventLoop[] loops = new EventLoop[Math.min(MAX_EVENT_LOOPS, Runtime.getRuntime().availableProcessors())];
+        try {
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new EventLoop(i, executor);
+                loops[i].start();
+            }
+
+            int next = 0;
+            while (true) {
+                SocketChannel channel = server.accept();
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            }
+        } finally {
+            for (EventLoop loop : loops) {
+                if (loop != null) {
+                    loop.shutdown();
+                }
+            }
+        }
+    }
+
+    private class EventLoop extends Thread {
+        private final Selector selector;
+        private final ConnectionExecutor workers;
+        private final ConcurrentLinkedQueue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();
+        private final ConcurrentLinkedQueue<SelectionKey> rendered = new ConcurrentLinkedQueue<>();
+        private final ArrayList<SelectionKey> handoffs = new ArrayList<>();
+        private final ArrayList<SelectionKey> throttled = new ArrayList<>();
+        private volatile boolean open = true;
+
+        EventLoop(int index, ConnectionExecutor workers) throws IOException {
+            super("MHFS-selector-" + index);
+            setDaemon(true);
+            this.workers = workers;
+            selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            accepted.add(channel);
+            selector.wakeup();
+        }
+
+        void shutdown() {
+            open = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (open) {
+                    selector.select(nextResumeMillis());
+                    registerAccepted();
+                    resumeRendered();
+                    processSelected();
+                    while (!handoffs.isEmpty()) {
+                        // Flush the cancelled keys so the channels may block again
+                        selector.selectNow();
+                        handOff();
+                        processSelected();
+                    }
+                    resumeThrottled();
+                }
+            } catch (IOException e) {
+                logException(e);
+            } finally {
+                for (SelectionKey key : new ArrayList<>(selector.keys())) {
+                    close(key);
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    logException(e);
+                }
+            }
+        }
+
+        private void registerAccepted() {
+            SocketChannel channel;
+            while ((channel = accepted.poll()) != null) {
+                try {
+                    channel.configureBlocking(false);
+                    channel.register(selector, SelectionKey.OP_READ,
+                            new SelectorConnection(channel, monitor, label));
+                } catch (IOException e) {
+                    logException(e);
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+
+        private void processSelected() {
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                handle(key);
+            }
+        }
+
+        private void handle(SelectionKey key) {
+            SelectorConnection connection = (SelectorConnection) key.attachment();
+            try {
+                if (!key.isValid()) {
+                    close(key);
+                } else if (key.isReadable()) {
+                    switch (connection.onReadable()) {
+                        case WRITE:
+                            key.interestOps(SelectionKey.OP_WRITE);
+                            break;
+                        case RENDER:
+                            render(key, connection);
+                            break;
+                        case HANDOFF:
+                            key.cancel();
+                            handoffs.add(key);
+                            break;
+                        case CLOSE:
+                            close(key);
+                            break;
+                        default:
+                            break;
+                    }
+                } else if (key.isWritable()) {
+                    long wait = connection.throttleNanos();
+                    if (wait > 0) {
+                        key.interestOps(0);
+                        connection.resumeAtNanos = System.nanoTime() + wait;
+                        throttled.add(key);
+                    } else if (connection.onWritable()) {
+                        close(key);
+                    }
+                }
+            } catch (IOException e) {
+                // Most likely the client went away, closing the connection logs how far it got
+                close(key);
+            } catch (RuntimeException e) {
+                logException(e);
+                close(key);
+            }
+        }
+
+        /**
+         * The connection sleeps while a worker renders its listing, and is
+         * woken up to write it when the worker is done.
+         */
+        private void render(SelectionKey key, SelectorConnection connection) {
+            key.interestOps(0);
+            try {
+                workers.execute(() -> {
+                    connection.render();
+                    rendered.add(key);
+                    selector.wakeup();
+                });
+            } catch (RejectedExecutionException e) {
+                connection.reject();
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+        }
+
+        private void resumeRendered() {
+            SelectionKey key;
+            while ((key = rendered.poll()) != null) {
+                if (key.isValid()) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                }
+            }
+        }
+
+        private void handOff() {
+            for (SelectionKey key : handoffs) {
+                SelectorConnection connection = (SelectorConnection) key.attachment();
+                SocketChannel channel = (SocketChannel) key.channel();
+                try {
+                    channel.configureBlocking(true);
+                    monitor.addNetworkInstance(new NetworkInstance(channel.socket(), label, connection.getPrefetched()));
+                } catch (IOException e) {
+                    logException(e);
+                    connection.close();
+                }
+            }
+            handoffs.clear();
+        }
+
+        private long nextResumeMillis() {
+            if (throttled.isEmpty()) {
+                return 0;
+            }
+            long next = Long.MAX_VALUE;
+            for (SelectionKey key : throttled) {
+                next = Math.min(next, ((SelectorConnection) key.attachment()).resumeAtNanos);
+            }
+            return Math.max(1, (next - System.nanoTime()) / 1000000);
+        }
+
+        private void resumeThrottled() {
+            long now = System.nanoTime();
+            Iterator<SelectionKey> it = throttled.iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                if (!key.isValid()) {
+                    it.remove();
+                } else if (((SelectorConnection) key.attachment()).resumeAtNanos <= now) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    it.remove();
+                }
+            }
+        }
+
+        private void close(SelectionKey key) {
+            key.cancel();
+            ((SelectorConnection) key.attachment()).close();
+        }
+    }
+}
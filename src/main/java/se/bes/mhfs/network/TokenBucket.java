@@ -0,0 +1,119 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Erik Zivkovic
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package se.bes.mhfs.network;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shapes the traffic of all connections together to one rate. Transfers
+ * take tokens for the bytes they actually moved; once more has been taken
+ * than the rate allows the bucket is in debt, and every transfer waits
+ * until it is paid off. Idle time saves up at most burst bytes, so the
+ * rate holds however many connections share the bucket.
+ */
+public class TokenBucket {
+    private static final int MIN_CHUNK_SIZE = 1024;
+
+    private long mRate; // bytes per second, 0 for unlimited
+    private long mBurst; // bytes
+    private double mTokens;
+    private long mLastNanos = System.nanoTime();
+
+    /**
+     * @param bytesPerSecond 0 for unlimited
+     * @param burstBytes     how much may be sent at once after being idle
+     */
+    public synchronized void setRate(long bytesPerSecond, long burstBytes) {
+        refill();
+        mRate = Math.max(0, bytesPerSecond);
+        mBurst = Math.max(0, burstBytes);
+        mTokens = mRate > 0 ? Math.min(mTokens, mBurst) : 0;
+    }
+
+    public synchronized boolean isLimited() {
+        return mRate > 0;
+    }
+
+    /**
+     * Tokens are taken after the bytes have moved, so a single large write
+     * could run far ahead of the rate before anyone waits. Shaped transfers
+     * move about 50 ms worth at a time instead.
+     *
+     * @param preferred the size used when unlimited
+     * @return how many bytes to move at once
+     */
+    public synchronized int chunkSize(int preferred) {
+        if (mRate == 0) {
+            return preferred;
+        }
+        return (int) Math.max(MIN_CHUNK_SIZE, Math.min(preferred, mRate / 20));
+    }
+
+    /**
+     * Takes tokens for bytes that have been moved.
+     *
+     * @return nanoseconds to wait before moving more
+     */
+    public synchronized long take(long bytes) {
+        if (mRate == 0) {
+            return 0;
+        }
+        refill();
+        mTokens -= bytes;
+        return debtNanos();
+    }
+
+    /**
+     * @return nanoseconds until the bucket is out of debt, 0 if bytes may be moved now
+     */
+    public synchronized long waitNanos() {
+        if (mRate == 0) {
+            return 0;
+        }
+        refill();
+        return debtNanos();
+    }
+
+    /**
+     * Takes tokens for bytes that have been moved and sleeps off any debt,
+     * for the blocking transfer loops.
+     */
+    public void consume(long bytes) throws InterruptedException {
+        long wait = take(bytes);
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    private long debtNanos() {
+        return mTokens >= 0 ? 0 : (long) (-mTokens * 1000000000d / mRate);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        mTokens = Math.min(mBurst, mTokens + (now - mLastNanos) * (double) mRate / 1000000000d);
+        mLastNanos = now;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Erik Zivkovic
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package se.bes.mhfs.network;
+
+/**
+ * A rule that puts transfers in their own share of the bandwidth. A
+ * transfer belongs to the first class it matches, or to the default class
+ * if it matches none. Directory listings, plugins and pages are never
+ * shaped, only file transfers are.
+ * <p>
+ * Written to the settings file as name::direction::path::maxSize::weight::cap,
+ * like {@code iso::DOWNLOAD::/iso::0::1::500}.
+ */
+public class TrafficClass {
+    public enum Direction {
+        DOWNLOAD, UPLOAD, BOTH
+    }
+
+    public static final String DEFAULT_NAME = "default";
+
+    private static final String SEPARATOR = "::";
+
+    public final String name;
+    public final Direction direction;
+    /**
+     * Matches paths under the base directory starting with this, like /iso.
+     * Empty for any path.
+     */
+    public final String path;
+    /**
+     * Matches files of at most this many kB, 0 for any size
+     */
+    public final long maxSize;
+    /**
+     * Share of the bandwidth compared to the other busy classes. A class
+     * with weight 0 is not shaped at all, apart from its cap.
+     */
+    public final int weight;
+    /**
+     * kB/s the class may never go above, 0 for no cap
+     */
+    public final int cap;
+
+    public TrafficClass(String name, Direction direction, String path, long maxSize, int weight, int cap) {
+        if (name == null || name.isEmpty() || name.contains(SEPARATOR)) {
+            throw new IllegalArgumentException("Bad traffic class name: " + name);
+        }
+        if (path == null || path.contains(SEPARATOR)) {
+            throw new IllegalArgumentException("Bad traffic class path: " + path);
+        }
+        if (maxSize < 0 || weight < 0 || cap < 0) {
+            throw new IllegalArgumentException("Negative traffic class limit in " + name);
+        }
+        this.name = name;
+        this.direction = direction;
+        this.path = path;
+        this.maxSize = maxSize;
+        this.weight = weight;
+        this.cap = cap;
+    }
+
+    /**
+     * @param line as written by {@link #toString()}
+     * @throws IllegalArgumentException if line is not a traffic class
+     */
+    public static TrafficClass parse(String line) {
+        String[] split = line.split(SEPARATOR, -1);
+        if (split.length != 6) {
+            throw new IllegalArgumentException("Not a traffic class: " + line);
+        }
+        return new TrafficClass(split[0].trim(), Direction.valueOf(split[1].trim()), split[2].trim(),
+                Long.parseLong(split[3].trim()), Integer.parseInt(split[4].trim()), Integer.parseInt(split[5].trim()));
+    }
+
+    /**
+     * @param path a path under the base directory, like /iso/disk.iso
+     * @param size of the file in bytes, -1 if not known
+     */
+    boolean matches(Direction direction, String path, long size) {
+        if (this.direction != Direction.BOTH && this.direction != direction) {
+            return false;
+        }
+        if (!this.path.isEmpty() && !isUnder(path, this.path)) {
+            return false;
+        }
+        return maxSize == 0 || (size >= 0 && size <= maxSize * 1024);
+    }
+
+    private static boolean isUnder(String path, String prefix) {
+        if (prefix.endsWith("/")) {
+            return path.startsWith(prefix);
+        }
+        // /iso covers /iso and /iso/disk.iso but not /isometric
+        return path.startsWith(prefix)
+                && (path.length() == prefix.length() || path.charAt(prefix.length()) == '/');
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        TrafficClass that = (TrafficClass) o;
+
+        return name.equals(that.name) && direction == that.direction && path.equals(that.path)
+                && maxSize == that.maxSize && weight == that.weight && cap == that.cap;
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return name + SEPARATOR + direction + SEPARATOR + path + SEPARATOR + maxSize
+                + SEPARATOR + weight + SEPARATOR + cap;
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Erik Zivkovic
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package se.bes.mhfs.network;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shapes one direction of bandwidth by {@link TrafficClass}. The rate is
+ * divided between the busy classes by weight, a class capped below its
+ * share hands the rest to the others, and inside each class a
+ * {@link FairShaper} shares it between clients. Classes with weight 0 only
+ * keep to their cap, so they never wait behind bulk transfers.
+ */
+public class TrafficShaper {
+    private static final long REBALANCE_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final TrafficClass DEFAULT_CLASS =
+            new TrafficClass(TrafficClass.DEFAULT_NAME, TrafficClass.Direction.BOTH, "", 0, 1, 0);
+
+    private final TrafficClass.Direction mDirection;
+    private final TokenBucket mTotal = new TokenBucket();
+    private volatile List<Lane> mLanes = Collections.singletonList(new Lane(DEFAULT_CLASS));
+    private long mRate;
+    private long mBurst;
+    private volatile long mRebalancedNanos;
+
+    public TrafficShaper(TrafficClass.Direction direction) {
+        mDirection = direction;
+    }
+
+    /**
+     * @param bytesPerSecond for all classes together, 0 for unlimited
+     * @param burstBytes     how much may be sent at once after being idle
+     */
+    public synchronized void setRate(long bytesPerSecond, long burstBytes) {
+        mRate = Math.max(0, bytesPerSecond);
+        mBurst = Math.max(0, burstBytes);
+        mTotal.setRate(mRate, mBurst);
+        rebalance(System.nanoTime());
+    }
+
+    /**
+     * Classes for the other direction are left out. Transfers that are
+     * open keep the class they started in; a class that is still there
+     * keeps its transfers and stats.
+     */
+    public synchronized void setClasses(List<TrafficClass> classes) {
+        List<Lane> lanes = new ArrayList<>();
+        for (TrafficClass trafficClass : classes) {
+            if (trafficClass.direction == TrafficClass.Direction.BOTH || trafficClass.direction == mDirection) {
+                lanes.add(lane(trafficClass));
+            }
+        }
+        lanes.add(lane(DEFAULT_CLASS));
+        mLanes = Collections.unmodifiableList(lanes);
+        rebalance(System.nanoTime());
+    }
+
+    private Lane lane(TrafficClass trafficClass) {
+        for (Lane lane : mLanes) {
+            if (lane.mClass.equals(trafficClass)) {
+                return lane;
+            }
+        }
+        return new Lane(trafficClass);
+    }
+
+    /**
+     * Starts a transfer in the first class that matches it,
+     * {@link FairShaper.Client#close()} it when done.
+     *
+     * @param path a path under the base directory, like /iso/disk.iso
+     * @param size of the file in bytes, -1 if not known
+     */
+    public FairShaper.Client open(InetAddress address, String path, long size) {
+        List<Lane> lanes = mLanes;
+        for (Lane lane : lanes) {
+            if (lane.mClass.matches(mDirection, path, size)) {
+                return lane.mShaper.open(address);
+            }
+        }
+        // The default class is always last and matches everything
+        return lanes.get(lanes.size() - 1).mShaper.open(address);
+    }
+
+    /**
+     * @return the classes in the order they are matched, the default class last
+     */
+    public List<Lane> getLanes() {
+        return mLanes;
+    }
+
+    void maybeRebalance(long now) {
+        if (now - mRebalancedNanos > REBALANCE_NANOS) {
+            rebalance();
+        }
+    }
+
+    synchronized void rebalance() {
+        rebalance(System.nanoTime());
+    }
+
+    private void rebalance(long now) {
+        mRebalancedNanos = now;
+        List<Lane> lanes = mLanes;
+        long[] rates = new long[lanes.size()];
+        long weights = 0;
+        for (int i = 0; i < rates.length; i++) {
+            Lane lane = lanes.get(i);
+            long cap = lane.mClass.cap * 1024L;
+            if (mRate == 0 || lane.mClass.weight == 0) {
+                rates[i] = cap;
+            } else if (!lane.mShaper.isActive(now)) {
+                // Idle classes get the full rate, they are back in the division once they move again
+                rates[i] = cap > 0 ? Math.min(cap, mRate) : mRate;
+            } else {
+                rates[i] = -1;
+                weights += lane.mClass.weight;
+            }
+        }
+
+        long remaining = mRate;
+        boolean capped;
+        do {
+            capped = false;
+            for (int i = 0; i < rates.length; i++) {
+                TrafficClass trafficClass = lanes.get(i).mClass;
+                long cap = trafficClass.cap * 1024L;
+                if (rates[i] == -1 && cap > 0 && cap < remaining * trafficClass.weight / weights) {
+                    rates[i] = cap;
+                    remaining -= cap;
+                    weights -= trafficClass.weight;
+                    capped = true;
+                }
+            }
+        } while (capped);
+
+        for (int i = 0; i < rates.length; i++) {
+            if (rates[i] == -1) {
+                rates[i] = Math.max(1, remaining * lanes.get(i).mClass.weight / weights);
+            }
+            lanes.get(i).mShaper.setRate(rates[i], mBurst);
+        }
+    }
+
+    /**
+     * The transfers of one traffic class, with their stats.
+     */
+    public final class Lane {
+        private final TrafficClass mClass;
+        private final FairShaper mShaper;
+
+        private Lane(TrafficClass trafficClass) {
+            mClass = trafficClass;
+            mShaper = new FairShaper(TrafficShaper.this, trafficClass.weight > 0 ? mTotal : null);
+        }
+
+        public TrafficClass getTrafficClass() {
+            return mClass;
+        }
+
+        /**
+         * @return the clients of this class, with its rate and transfer count
+         */
+        public FairShaper getShaper() {
+            return mShaper;
+        }
+    }
+}
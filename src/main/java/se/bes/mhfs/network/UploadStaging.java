@@ -0,0 +1,252 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Erik Zivkovic
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package se.bes.mhfs.network;
+
+import se.bes.mhfs.filesystem.FSList;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PUT uploads in progress. They are written to a directory inside the
+ * upload directory and renamed into place once every byte is there. What
+ * a dropped connection managed to send is kept, so the client can ask how
+ * far it got and go on from there with a Content-Range, like Google's
+ * resumable uploads, instead of sending everything again.
+ */
+class UploadStaging {
+    /**
+     * Partial uploads nobody has touched for this long are deleted.
+     */
+    private static final long EXPIRE_MILLIS = TimeUnit.HOURS.toMillis(24);
+
+    private final File mUploadDir;
+    private final File mDir;
+
+    UploadStaging(String uploadDir) {
+        mUploadDir = new File(uploadDir);
+        mDir = new File(mUploadDir, FSList.STAGING_DIRECTORY);
+    }
+
+    /**
+     * A chunk starts past what has been received, the client has to go back.
+     */
+    static class AheadException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final long received;
+
+        AheadException(String message, long received) {
+            super(message);
+            this.received = received;
+        }
+    }
+
+    /**
+     * Another connection is writing the same upload.
+     */
+    static class BusyException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        BusyException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Where a chunk of an upload goes, from a Content-Range like
+     * bytes 0-1023/4096, or bytes &#42;/4096 when the client only asks how
+     * much has arrived.
+     */
+    static class Chunk {
+        final long start;
+        final long end; // inclusive
+        final long total;
+        final boolean query; // nothing is sent, the client asks how much has arrived
+
+        Chunk(long start, long end, long total) {
+            this(start, end, total, false);
+        }
+
+        private Chunk(long start, long end, long total, boolean query) {
+            this.start = start;
+            this.end = end;
+            this.total = total;
+            this.query = query;
+        }
+
+        long length() {
+            return end - start + 1;
+        }
+
+        /**
+         * @return null if header is not a Content-Range with a known total
+         */
+        static Chunk parse(String header) {
+            if (header == null || !header.regionMatches(true, 0, "bytes ", 0, 6)) {
+                return null;
+            }
+            String spec = header.substring(6).trim();
+            int slash = spec.indexOf('/');
+            if (slash < 0) {
+                return null;
+            }
+            try {
+                long total = Long.parseLong(spec.substring(slash + 1).trim());
+                String range = spec.substring(0, slash).trim();
+                if (range.equals("*")) {
+                    return total >= 0 ? new Chunk(0, -1, total, true) : null;
+                }
+                int dash = range.indexOf('-');
+                if (dash < 0) {
+                    return null;
+                }
+                long start = Long.parseLong(range.substring(0, dash).trim());
+                long end = Long.parseLong(range.substring(dash + 1).trim());
+                return start >= 0 && end >= start && end < total ? new Chunk(start, end, total) : null;
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * @return where the finished upload goes
+     */
+    File target(String name) {
+        return new File(mUploadDir, name);
+    }
+
+    /**
+     * @return the number of bytes received so far of name, an upload of total bytes
+     */
+    long offset(String name, long total) {
+        return partFile(name, total).length();
+    }
+
+    /**
+     * Opens the partial file of name for writing at start. Anything past
+     * start is cut off, it is about to be sent again.
+     *
+     * @throws AheadException if start is past what has been received
+     * @throws BusyException  if another connection is writing it
+     */
+    FileChannel open(String name, long total, long start) throws IOException {
+        if (!mDir.isDirectory()) {
+            Files.createDirectories(mDir.toPath());
+        } else {
+            expireOld();
+        }
+
+        File part = partFile(name, total);
+        FileChannel channel = FileChannel.open(part.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            FileLock lock;
+            try {
+                lock = channel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                lock = null;
+            }
+            if (lock == null) {
+                throw new BusyException(name + " is being uploaded on another connection");
+            }
+            if (start > channel.size()) {
+                throw new AheadException("Chunk starts at " + start + ", only " + channel.size() + " bytes of " + name + " are here",
+                        channel.size());
+            }
+            channel.truncate(start);
+            channel.position(start);
+            return channel;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Puts the finished upload into the upload directory all at once, never
+     * over an existing file.
+     *
+     * @throws FileAlreadyExistsException if there is a file called name already
+     */
+    void complete(String name, long total) throws IOException {
+        Path part = partFile(name, total).toPath();
+        Path target = target(name).toPath();
+        // The staging directory is inside the upload directory, so both work on the same file system.
+        // A hard link fails if target exists, a rename would silently replace it.
+        boolean linked;
+        try {
+            Files.createLink(target, part);
+            linked = true;
+        } catch (FileAlreadyExistsException e) {
+            throw e;
+        } catch (UnsupportedOperationException | IOException e) {
+            linked = false;
+        }
+        if (linked) {
+            Files.delete(part);
+            return;
+        }
+        // No hard links here, the rename can only replace a file that appeared a moment ago
+        if (Files.exists(target)) {
+            throw new FileAlreadyExistsException(target.toString());
+        }
+        Files.move(part, target, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * The total is part of the file name, so two different uploads that
+     * happen to have the same name are unlikely to be mixed up.
+     */
+    private File partFile(String name, long total) {
+        return new File(mDir, name + "." + total + ".part");
+    }
+
+    /**
+     * Deletes the partial uploads nobody has touched for a day. Run when
+     * the server starts and whenever an upload is staged.
+     */
+    void expireOld() {
+        File[] parts = mDir.listFiles();
+        if (parts == null) {
+            return;
+        }
+        long expired = System.currentTimeMillis() - EXPIRE_MILLIS;
+        for (File part : parts) {
+            if (part.lastModified() < expired) {
+                part.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Erik Zivkovic
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package se.bes.mhfs.network;
+
+import se.bes.mhfs.filesystem.DirEntry;
+
+import java.io.File;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Map;
+
+/**
+ * Cache validators (ETag and Last-Modified) and the conditional request
+ * checks that use them.
+ */
+class Validators {
+
+    /**
+     * Strong validator for a file, from its size and modification time.
+     */
+    static String fileETag(File f) {
+        return fileETag(f.length(), f.lastModified());
+    }
+
+    static String fileETag(long length, long lastModified) {
+        return "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+    }
+
+    /**
+     * Weak validator for a standard listing, from the entries of the directory.
+     */
+    static String listingETag(DirEntry[] dirs, DirEntry[] files) {
+        long hash = 17;
+        int count = 0;
+        if (dirs != null) {
+            for (DirEntry d : dirs) {
+                hash = 31 * hash + d.getName().hashCode();
+                count++;
+            }
+        }
+        if (files != null) {
+            for (DirEntry f : files) {
+                hash = 31 * hash + f.getName().hashCode();
+                hash = 31 * hash + f.length();
+                hash = 31 * hash + f.lastModified();
+                count++;
+            }
+        }
+        return "W/\"" + Long.toHexString(hash) + "-" + count + "\"";
+    }
+
+    /**
+     * Weak validator for the custom list, from the shared names and their files.
+     */
+    static String customListETag(Map<String, File> customFiles) {
+        long hash = 17;
+        for (Map.Entry<String, File> entry : customFiles.entrySet()) {
+            // Summed so the map's iteration order does not matter
+            hash += entry.getKey().hashCode() * 31L + entry.getValue().length() * 17L + entry.getValue().lastModified();
+        }
+        return "W/\"" + Long.toHexString(hash) + "-" + customFiles.size() + "\"";
+    }
+
+    static String httpDate(long millis) {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(
+                ZonedDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneOffset.UTC));
+    }
+
+    /**
+     * @return true if a GET or HEAD can be answered with 304 Not Modified.
+     * If-None-Match wins over If-Modified-Since when both are sent.
+     *
+     * @param lastModified milliseconds, or 0 if unknown
+     */
+    static boolean isNotModified(RequestHeaders request, String etag, long lastModified) {
+        String ifNoneMatch = request.get("If-None-Match");
+        if (ifNoneMatch != null) {
+            return matches(ifNoneMatch, etag, false);
+        }
+        String ifModifiedSince = request.get("If-Modified-Since");
+        if (ifModifiedSince != null && lastModified > 0) {
+            long since = parseHttpDate(ifModifiedSince);
+            // HTTP dates only have second precision
+            return since >= 0 && lastModified / 1000 <= since / 1000;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if a Range request may be served, i.e. there is no
+     * If-Range or it still matches the file
+     */
+    static boolean ifRangeMatches(RequestHeaders request, String etag, long lastModified) {
+        String ifRange = request.get("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return matches(ifRange, etag, true);
+        }
+        long date = parseHttpDate(ifRange);
+        return date >= 0 && lastModified / 1000 == date / 1000;
+    }
+
+    private static boolean matches(String header, String etag, boolean strong) {
+        for (String candidate : header.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.equals("*")) {
+                return true;
+            }
+            if (strong) {
+                if (!candidate.startsWith("W/") && !etag.startsWith("W/") && candidate.equals(etag)) {
+                    return true;
+                }
+            } else if (opaque(candidate).equals(opaque(etag))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String opaque(String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+
+    private static long parseHttpDate(String date) {
+        try {
+            return ZonedDateTime.parse(date.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+}
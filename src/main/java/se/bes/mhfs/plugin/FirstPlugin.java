@@ -26,7 +26,9 @@ package se.bes.mhfs.plugin;
 
 import se.bes.mhfs.manager.HFSMonitor;
 import se.bes.mhfs.network.NetworkInstance;
+import se.bes.mhfs.network.ResponseWriter;
 
+import java.io.IOException;
 import java.io.PrintStream;
 import java.net.Socket;
 
@@ -40,14 +42,22 @@ public class FirstPlugin extends Plugin{
     }
 
     public void runPlugin(Socket s) {
+        ResponseWriter writer;
         try {
-            printStream = new PrintStream(s.getOutputStream());
+            writer = new ResponseWriter(s.getOutputStream());
         } catch (Exception e) {
             e.printStackTrace();
+            return;
         }
+        printStream = writer.printer();
         NetworkInstance.HTMLBegin(printStream);
         printStream.println("Nice Test");
         NetworkInstance.HTMLEnd(printStream);
+        try {
+            writer.finish();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     @Override
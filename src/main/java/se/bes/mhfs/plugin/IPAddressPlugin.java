@@ -27,10 +27,12 @@ package se.bes.mhfs.plugin;
 import se.bes.mhfs.events.UpdateEvent;
 import se.bes.mhfs.manager.HFSMonitor;
 import se.bes.mhfs.network.NetworkInstance;
+import se.bes.mhfs.network.ResponseWriter;
 import se.datadosen.component.RiverLayout;
 
 import javax.swing.*;
 import java.awt.*;
+import java.io.IOException;
 import java.io.PrintStream;
 import java.net.InetAddress;
 import java.net.Socket;
@@ -63,17 +65,25 @@ public class IPAddressPlugin extends Plugin {
     }
 
     public void runPlugin(Socket s) {
+        ResponseWriter writer;
         try {
-            printStream = new PrintStream(s.getOutputStream());
+            writer = new ResponseWriter(s.getOutputStream());
         } catch (Exception e) {
             e.printStackTrace();
+            return;
         }
+        printStream = writer.printer();
         NetworkInstance.HTMLBegin(printStream);
         printStream.println("These are your IP Addresses.<br>"
                 + "Some of these might be local addresses (they might not be connected to the Internet).<br>"
                 + "Make sure your router and/or firewall has the appropriate settings and forwards the correct port.<br><br>"
                 + "" + addresses);
         NetworkInstance.HTMLEnd(printStream);
+        try {
+            writer.finish();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     public void updateGfx() {